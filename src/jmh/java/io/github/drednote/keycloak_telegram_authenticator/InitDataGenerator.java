@@ -0,0 +1,144 @@
+package io.github.drednote.keycloak_telegram_authenticator;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Generates {@code init_data} signed the same way Telegram does it.
+ */
+public final class InitDataGenerator {
+
+    public static final String BOT_TOKEN = "7000000000:AAFbenchmark-token_for_signing_init_data";
+
+    private static final String SIGNATURE =
+        "YJ4s2zMk0DIlWj9S4ErZNkw5BY3oxcrYy8ZQW6p3EhqsbKEq-g9z0o9GVWW3aoDUjRkz3qbWhpzQrRd1Gyf2CA";
+
+    private InitDataGenerator() {
+    }
+
+    public enum Format {
+        /**
+         * url encoded query string, as Telegram passes it to the Mini App
+         */
+        QUERY,
+        /**
+         * json object with string values, see README
+         */
+        JSON
+    }
+
+    public enum Size {
+        /**
+         * only required fields and a minimal user
+         */
+        SMALL,
+        /**
+         * typical payload of a private chat
+         */
+        MEDIUM,
+        /**
+         * all user fields, long non-ascii names and start param
+         */
+        LARGE
+    }
+
+    public static String generate(Format format, Size size, long telegramId, long authDate) {
+        return generate(format, size, telegramId, authDate, BOT_TOKEN);
+    }
+
+    public static String generate(Format format, Size size, long telegramId, long authDate, String botToken) {
+        Map<String, String> fields = fields(size, telegramId, authDate);
+        fields.put("hash", sign(fields, botToken));
+        return format == Format.QUERY ? toQuery(fields) : toJson(fields);
+    }
+
+    /**
+     * Same payload with a wrong hash.
+     */
+    public static String forge(Format format, Size size, long telegramId, long authDate) {
+        Map<String, String> fields = fields(size, telegramId, authDate);
+        fields.put("hash", sign(fields, BOT_TOKEN + "x"));
+        return format == Format.QUERY ? toQuery(fields) : toJson(fields);
+    }
+
+    private static Map<String, String> fields(Size size, long telegramId, long authDate) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        switch (size) {
+            case SMALL -> {
+                fields.put("user", "{\"id\":" + telegramId + ",\"first_name\":\"John\"}");
+                fields.put("auth_date", Long.toString(authDate));
+            }
+            case MEDIUM -> {
+                fields.put("query_id", "AAHdF6IQAAAAAN0XohDhrOrc");
+                fields.put("user", "{\"id\":" + telegramId + ",\"first_name\":\"John\",\"last_name\":\"Doe\","
+                                   + "\"username\":\"john_doe_" + telegramId + "\",\"language_code\":\"en\","
+                                   + "\"allows_write_to_pm\":true}");
+                fields.put("chat_instance", "-3788475317572404878");
+                fields.put("chat_type", "private");
+                fields.put("auth_date", Long.toString(authDate));
+                fields.put("signature", SIGNATURE);
+            }
+            case LARGE -> {
+                fields.put("query_id", "AAHdF6IQAAAAAN0XohDhrOrc");
+                fields.put("user", "{\"id\":" + telegramId + ",\"first_name\":\"Иван Александрович 🚀\","
+                                   + "\"last_name\":\"Константинопольский-Щедрин\","
+                                   + "\"username\":\"ivan_konstantinopolsky_" + telegramId + "\","
+                                   + "\"language_code\":\"ru\",\"is_premium\":true,\"added_to_attachment_menu\":true,"
+                                   + "\"allows_write_to_pm\":true,"
+                                   + "\"photo_url\":\"https:\\/\\/t.me\\/i\\/userpic\\/320\\/"
+                                   + "4FPEE4tmP3ATHa57u6MqTDih13LTOiMoKoLDRG4PnSA.svg\"}");
+                fields.put("receiver", "{\"id\":7000000000,\"first_name\":\"Benchmark Bot\","
+                                       + "\"username\":\"benchmark_bot\",\"is_bot\":true}");
+                fields.put("chat", "{\"id\":-1001234567890,\"type\":\"supergroup\","
+                                   + "\"title\":\"Очень длинное название группы для проверки разбора\"}");
+                fields.put("chat_instance", "-3788475317572404878");
+                fields.put("chat_type", "supergroup");
+                fields.put("start_param", "campaign_2025_autumn_referral_" + telegramId);
+                fields.put("can_send_after", "10");
+                fields.put("auth_date", Long.toString(authDate));
+                fields.put("signature", SIGNATURE);
+            }
+        }
+        return fields;
+    }
+
+    private static String sign(Map<String, String> fields, String botToken) {
+        StringJoiner dataCheck = new StringJoiner("\n");
+        new TreeMap<>(fields).forEach((key, value) -> dataCheck.add(key + "=" + value));
+        byte[] secretKey = hmacSha256("WebAppData".getBytes(StandardCharsets.UTF_8), botToken);
+        return HexFormat.of().formatHex(hmacSha256(secretKey, dataCheck.toString()));
+    }
+
+    private static byte[] hmacSha256(byte[] key, String data) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toQuery(Map<String, String> fields) {
+        StringJoiner query = new StringJoiner("&");
+        fields.forEach((key, value) -> query.add(key + "=" + URLEncoder.encode(value, StandardCharsets.UTF_8)
+            .replace("+", "%20")));
+        return query.toString();
+    }
+
+    private static String toJson(Map<String, String> fields) {
+        StringJoiner json = new StringJoiner(",", "{", "}");
+        fields.forEach((key, value) -> json.add("\"" + key + "\":\"" + value
+            .replace("\\", "\\\\")
+            .replace("\"", "\\\"") + "\""));
+        return json.toString();
+    }
+}
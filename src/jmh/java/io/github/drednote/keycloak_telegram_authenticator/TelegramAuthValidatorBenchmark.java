@@ -0,0 +1,79 @@
+package io.github.drednote.keycloak_telegram_authenticator;
+
+import io.github.drednote.keycloak_telegram_authenticator.InitDataGenerator.Format;
+import io.github.drednote.keycloak_telegram_authenticator.InitDataGenerator.Size;
+import io.github.drednote.keycloak_telegram_authenticator.TelegramAuthValidator.AuthParams;
+import io.github.drednote.keycloak_telegram_authenticator.TelegramAuthValidator.AuthResponse;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parse, HMAC and user decode steps of {@link TelegramAuthValidator#validateData(AuthParams)}, and the whole call.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TelegramAuthValidatorBenchmark {
+
+    @Param({"QUERY", "JSON"})
+    private Format format;
+
+    @Param({"SMALL", "MEDIUM", "LARGE"})
+    private Size size;
+
+    private AuthParams params;
+    private InitData initData;
+    private TelegramSecretKey secretKey;
+    private final byte[] hash = new byte[32];
+
+    @Setup
+    public void setUp() {
+        long authDate = Instant.now().getEpochSecond();
+        String data = InitDataGenerator.generate(format, size, 123456789L, authDate);
+        params = new AuthParams(data, InitDataGenerator.BOT_TOKEN, true, 86400);
+        initData = InitData.parse(data);
+        secretKey = TelegramSecretKey.derive(InitDataGenerator.BOT_TOKEN);
+        if (!TelegramAuthValidator.validateData(params).hashValid()) {
+            throw new IllegalStateException("Generated init_data is not valid");
+        }
+    }
+
+    @Benchmark
+    public InitData parse() {
+        return InitData.parse(params.initData());
+    }
+
+    @Benchmark
+    public boolean hmac() throws ShortBufferException {
+        Mac mac = secretKey.mac();
+        initData.writeDataCheck(mac);
+        mac.doFinal(hash, 0);
+        return initData.hashEquals(hash);
+    }
+
+    @Benchmark
+    public TelegramUser parseUser() {
+        return new AuthResponse(true, true, initData).user();
+    }
+
+    @Benchmark
+    public AuthResponse validateData() {
+        return TelegramAuthValidator.validateData(params);
+    }
+}
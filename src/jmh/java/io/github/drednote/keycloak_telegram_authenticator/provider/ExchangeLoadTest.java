@@ -0,0 +1,352 @@
+package io.github.drednote.keycloak_telegram_authenticator.provider;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import io.github.drednote.keycloak_telegram_authenticator.Constants;
+import io.github.drednote.keycloak_telegram_authenticator.InitDataGenerator;
+import io.github.drednote.keycloak_telegram_authenticator.InitDataGenerator.Format;
+import io.github.drednote.keycloak_telegram_authenticator.InitDataGenerator.Size;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.keycloak.common.ClientConnection;
+import org.keycloak.events.Details;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventBuilder;
+import org.keycloak.events.EventType;
+import org.keycloak.models.ClientSessionContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.protocol.oidc.TokenExchangeContext;
+import org.keycloak.protocol.oidc.TokenManager;
+import org.keycloak.protocol.oidc.TokenManager.AccessTokenResponseBuilder;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.representations.AccessTokenResponse;
+import org.keycloak.services.CorsErrorResponseException;
+import org.keycloak.services.cors.Cors;
+import org.mockito.MockedStatic;
+
+/**
+ * Drives {@link TelegramTokenExchangeProvider#exchange} from many virtual threads against {@link InMemoryKeycloak} and
+ * prints latency percentiles, throughput and the breakdown of outcomes by kind of request.
+ * <p>
+ * Every worker thread owns its request scoped stubs (event, cors, token manager and the static
+ * {@link TokenManager#attachAuthenticationSession} stub, which Mockito binds to a thread), so workers share only the
+ * in-memory storage and the provider. Requests are generated and signed before the run. A warmup round on separate
+ * storage runs first and is not reported.
+ * <p>
+ * Options are system properties, see {@link Options}.
+ */
+public final class ExchangeLoadTest {
+
+    private static final String OK = "ok";
+    private static final int AUTH_TIME_DELTA = 3600;
+    private static final AtomicInteger workers = new AtomicInteger();
+
+    private ExchangeLoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.fromSystemProperties();
+        System.out.println(options);
+
+        run(options, options.warmup);
+
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        Metrics.addRegistry(registry);
+        try {
+            Result result = run(options, options.requests);
+            result.print(registry);
+        } finally {
+            Metrics.removeRegistry(registry);
+        }
+    }
+
+    private static Result run(Options options, int requestCount) throws Exception {
+        Map<String, String> realmAttributes = new HashMap<>(options.realmAttributes);
+        realmAttributes.putIfAbsent(Constants.TELEGRAM_BOT_TOKEN, InitDataGenerator.BOT_TOKEN);
+        realmAttributes.putIfAbsent(Constants.TELEGRAM_AUTH_TIME_DELTA, Integer.toString(AUTH_TIME_DELTA));
+        InMemoryKeycloak keycloak = new InMemoryKeycloak(realmAttributes);
+        for (long telegramId = 1; telegramId <= options.returningUsers; telegramId++) {
+            keycloak.seedUser(telegramId);
+        }
+        List<Request> requests = generate(options, requestCount);
+
+        TelegramTokenExchangeProviderFactory factory = KeycloakStubs.factory();
+        Result result = new Result(options, keycloak, requests);
+        AtomicInteger next = new AtomicInteger();
+        long start = System.nanoTime();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < options.threads; i++) {
+                executor.submit(() -> {
+                    try (Worker worker = new Worker(keycloak, factory, options)) {
+                        int index;
+                        while ((index = next.getAndIncrement()) < requests.size()) {
+                            worker.exchange(requests.get(index), result, index);
+                        }
+                    }
+                    return null;
+                });
+            }
+        }
+        result.wallNanos = System.nanoTime() - start;
+        factory.close();
+        return result;
+    }
+
+    private static List<Request> generate(Options options, int count) {
+        Random random = new Random(options.seed);
+        long now = Instant.now().getEpochSecond();
+        long nextNewUser = options.returningUsers + 1;
+        List<Request> requests = new ArrayList<>(count);
+        while (requests.size() < count) {
+            double roll = random.nextDouble();
+            long returningId = 1 + random.nextInt(Math.max(1, options.returningUsers));
+            if (roll < options.forged) {
+                long telegramId = options.returningUsers + 1_000_000_000L + random.nextInt(1_000_000);
+                requests.add(new Request(Kind.FORGED,
+                    InitDataGenerator.forge(options.format, options.size, telegramId, now - random.nextInt(60))));
+            } else if (roll < options.forged + options.expired) {
+                requests.add(new Request(Kind.EXPIRED, InitDataGenerator.generate(options.format, options.size,
+                    returningId, now - AUTH_TIME_DELTA - 1 - random.nextInt(3600))));
+            } else if (roll < options.forged + options.expired + options.newUsers || options.returningUsers == 0) {
+                // several taps of the same new user arrive together
+                String initData = InitDataGenerator.generate(options.format, options.size, nextNewUser++, now);
+                for (int i = 0; i < options.newUserBurst && requests.size() < count; i++) {
+                    requests.add(new Request(Kind.NEW_USER, initData));
+                }
+            } else {
+                requests.add(new Request(Kind.RETURNING_USER,
+                    InitDataGenerator.generate(options.format, options.size, returningId, now)));
+            }
+        }
+        return requests;
+    }
+
+    enum Kind {
+        RETURNING_USER,
+        NEW_USER,
+        EXPIRED,
+        FORGED
+    }
+
+    record Request(Kind kind, String initData) {
+
+    }
+
+    /**
+     * Request scoped Keycloak objects of one worker thread. Answers read the request being handled from the fields.
+     */
+    private static final class Worker implements AutoCloseable {
+
+        private final InMemoryKeycloak keycloak;
+        private final TelegramTokenExchangeProvider provider;
+        private final TokenExchangeContext context;
+        private final MockedStatic<TokenManager> tokenManagerStatic;
+        private final String remoteAddress;
+
+        private KeycloakSession session;
+        private String error;
+        private String reason;
+
+        private Worker(InMemoryKeycloak keycloak, TelegramTokenExchangeProviderFactory factory, Options options) {
+            this.keycloak = keycloak;
+            int address = Math.floorMod(workers.getAndIncrement(), Math.max(1, options.addresses));
+            this.remoteAddress = "10." + address / 256 + "." + address % 256 + ".1";
+
+            EventBuilder event = mock(EventBuilder.class, withSettings().stubOnly().defaultAnswer(RETURNS_SELF));
+            Event tokenExchange = new Event();
+            tokenExchange.setType(EventType.TOKEN_EXCHANGE);
+            when(event.getEvent()).thenReturn(tokenExchange);
+            doAnswer(invocation -> {
+                error = invocation.getArgument(0);
+                return null;
+            }).when(event).error(anyString());
+            doAnswer(invocation -> {
+                if (Details.REASON.equals(invocation.getArgument(0))) {
+                    reason = invocation.getArgument(1);
+                }
+                return event;
+            }).when(event).detail(anyString(), anyString());
+
+            AccessTokenResponseBuilder responseBuilder = stub(AccessTokenResponseBuilder.class);
+            when(responseBuilder.generateAccessToken()).thenReturn(responseBuilder);
+            when(responseBuilder.generateRefreshToken()).thenReturn(responseBuilder);
+            when(responseBuilder.getAccessToken()).thenAnswer(invocation -> {
+                AccessToken token = new AccessToken();
+                token.setScope("openid profile email");
+                return token;
+            });
+            when(responseBuilder.build()).thenAnswer(invocation -> new AccessTokenResponse());
+            TokenManager tokenManager = stub(TokenManager.class);
+            when(tokenManager.responseBuilder(any(), any(), any(), any(), any(), any())).thenReturn(responseBuilder);
+            ClientSessionContext clientSessionContext = stub(ClientSessionContext.class);
+            tokenManagerStatic = mockStatic(TokenManager.class, withSettings().stubOnly());
+            tokenManagerStatic.when(() -> TokenManager.attachAuthenticationSession(any(), any(), any()))
+                .thenReturn(clientSessionContext);
+
+            ClientConnection clientConnection = stub(ClientConnection.class);
+            when(clientConnection.getRemoteAddr()).thenReturn(remoteAddress);
+
+            context = stub(TokenExchangeContext.class);
+            when(context.getSession()).thenAnswer(invocation -> session);
+            when(context.getRealm()).thenReturn(keycloak.realm());
+            when(context.getClient()).thenReturn(keycloak.client());
+            when(context.getClientConnection()).thenReturn(clientConnection);
+            when(context.getClientAuthAttributes()).thenReturn(Map.of());
+            when(context.getEvent()).thenReturn(event);
+            when(context.getCors()).thenReturn(stub(Cors.class));
+            when(context.getTokenManager()).thenReturn(tokenManager);
+            when(context.getParams()).thenReturn(stub(TokenExchangeContext.Params.class));
+
+            provider = (TelegramTokenExchangeProvider) factory.create(null);
+        }
+
+        private void exchange(Request request, Result result, int index) {
+            session = keycloak.session(request.initData());
+            error = null;
+            reason = null;
+            String outcome;
+            long start = System.nanoTime();
+            try {
+                provider.exchange(context);
+                outcome = OK;
+            } catch (CorsErrorResponseException e) {
+                outcome = error + ": " + reason;
+            } catch (RuntimeException e) {
+                outcome = e.getClass().getSimpleName();
+            } finally {
+                session.close();
+            }
+            result.record(index, request.kind(), outcome, System.nanoTime() - start);
+        }
+
+        @Override
+        public void close() {
+            provider.close();
+            tokenManagerStatic.close();
+        }
+
+        private static <T> T stub(Class<T> type) {
+            return mock(type, withSettings().stubOnly());
+        }
+    }
+
+    private static final class Result {
+
+        private final Options options;
+        private final InMemoryKeycloak keycloak;
+        private final long[] latencies;
+        private final Map<Kind, Map<String, LongAdder>> outcomes = new EnumMap<>(Kind.class);
+        private long wallNanos;
+
+        private Result(Options options, InMemoryKeycloak keycloak, List<Request> requests) {
+            this.options = options;
+            this.keycloak = keycloak;
+            this.latencies = new long[requests.size()];
+            for (Kind kind : Kind.values()) {
+                outcomes.put(kind, new ConcurrentHashMap<>());
+            }
+        }
+
+        private void record(int index, Kind kind, String outcome, long nanos) {
+            latencies[index] = nanos;
+            outcomes.get(kind).computeIfAbsent(outcome, key -> new LongAdder()).increment();
+        }
+
+        private void print(SimpleMeterRegistry registry) {
+            long[] sorted = latencies.clone();
+            Arrays.sort(sorted);
+            double seconds = wallNanos / 1e9;
+            System.out.printf(Locale.ROOT, "%n%d requests, %d threads, %.2f s, %.0f req/s%n",
+                sorted.length, options.threads, seconds, sorted.length / seconds);
+            System.out.printf(Locale.ROOT, "latency ms: p50 %.3f, p99 %.3f, p999 %.3f, max %.3f%n",
+                percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999),
+                sorted[sorted.length - 1] / 1e6);
+
+            System.out.printf("%nOutcomes:%n");
+            outcomes.forEach((kind, byOutcome) -> {
+                if (byOutcome.isEmpty()) {
+                    return;
+                }
+                System.out.printf("  %s%n", kind.name().toLowerCase(Locale.ROOT));
+                new TreeMap<>(byOutcome).forEach((outcome, count) ->
+                    System.out.printf("    %-70s %d%n", outcome, count.sum()));
+            });
+
+            System.out.printf("%nStorage: %d users, %d telegram ids with duplicate users, %d user sessions%n",
+                keycloak.userCount(), keycloak.duplicateTelegramUsers(), keycloak.userSessionCount());
+
+            System.out.printf("%nPhases (mean / max ms):%n");
+            for (Timer timer : registry.find("telegram.exchange.phase").timers()) {
+                System.out.printf(Locale.ROOT, "  %-10s %.3f / %.3f  (%d)%n", timer.getId().getTag("phase"),
+                    timer.mean(TimeUnit.MILLISECONDS), timer.max(TimeUnit.MILLISECONDS), timer.count());
+            }
+        }
+
+        private static double percentile(long[] sorted, double percentile) {
+            int index = (int) Math.ceil(percentile * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+        }
+    }
+
+    /**
+     * {@code load.threads} virtual threads, {@code load.requests} measured requests after {@code load.warmup} ones.
+     * Ratios of kinds: {@code load.new}, {@code load.expired}, {@code load.forged}, the rest are returning users out
+     * of {@code load.returning} seeded ones. Each new user sends {@code load.burst} requests at once. Workers use
+     * {@code load.addresses} remote addresses. {@code load.realm.<attribute>} sets a realm attribute.
+     */
+    record Options(
+        int threads, int requests, int warmup, int returningUsers, double newUsers, double expired, double forged,
+        int newUserBurst, int addresses, Format format, Size size, long seed, Map<String, String> realmAttributes
+    ) {
+
+        private static final String PREFIX = "load.";
+        private static final String REALM_PREFIX = PREFIX + "realm.";
+
+        static Options fromSystemProperties() {
+            Map<String, String> realmAttributes = new HashMap<>();
+            System.getProperties().forEach((key, value) -> {
+                if (key.toString().startsWith(REALM_PREFIX)) {
+                    realmAttributes.put(key.toString().substring(REALM_PREFIX.length()), value.toString());
+                }
+            });
+            return new Options(
+                Integer.getInteger(PREFIX + "threads", 200),
+                Integer.getInteger(PREFIX + "requests", 100_000),
+                Integer.getInteger(PREFIX + "warmup", 20_000),
+                Integer.getInteger(PREFIX + "returning", 10_000),
+                Double.parseDouble(System.getProperty(PREFIX + "new", "0.2")),
+                Double.parseDouble(System.getProperty(PREFIX + "expired", "0.05")),
+                Double.parseDouble(System.getProperty(PREFIX + "forged", "0.05")),
+                Integer.getInteger(PREFIX + "burst", 2),
+                Integer.getInteger(PREFIX + "addresses", 256),
+                Format.valueOf(System.getProperty(PREFIX + "format", Format.QUERY.name())),
+                Size.valueOf(System.getProperty(PREFIX + "size", Size.MEDIUM.name())),
+                Long.getLong(PREFIX + "seed", 42L),
+                Map.copyOf(realmAttributes));
+        }
+    }
+}
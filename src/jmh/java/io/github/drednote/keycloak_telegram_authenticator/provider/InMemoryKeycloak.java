@@ -0,0 +1,320 @@
+package io.github.drednote.keycloak_telegram_authenticator.provider;
+
+import io.github.drednote.keycloak_telegram_authenticator.Constants;
+import io.github.drednote.keycloak_telegram_authenticator.jpa.TelegramUserLinkEntity;
+import jakarta.persistence.EntityExistsException;
+import jakarta.persistence.EntityManager;
+import jakarta.ws.rs.core.MultivaluedHashMap;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.http.HttpRequest;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.KeycloakUriInfo;
+import org.keycloak.models.ModelDuplicateException;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.models.UserSessionProvider;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.keycloak.sessions.AuthenticationSessionProvider;
+import org.keycloak.sessions.RootAuthenticationSessionModel;
+
+/**
+ * In-memory stand-in of the Keycloak storage used by {@link TelegramTokenExchangeProvider}: users, user sessions and
+ * the telegram link table, shared by all threads of a load test.
+ * <p>
+ * Unlike {@link KeycloakStubs} these are plain {@link Proxy} objects over concurrent maps, so the only contention
+ * under load is the one of the data itself. Like the database, user names and links are unique: a concurrent duplicate
+ * fails with {@link ModelDuplicateException} or {@link EntityExistsException}. There are no transactions, so what was
+ * written before such a failure stays and every write is visible to all sessions right away. Closing a session stands
+ * for the commit of its transaction and runs what was enlisted to run after it.
+ */
+public final class InMemoryKeycloak {
+
+    private static final Object[] NO_ARGS = {};
+
+    private final RealmModel realm;
+    private final ClientModel client;
+    private final Map<String, UserModel> users = new ConcurrentHashMap<>();
+    private final Map<String, String> userIdsByName = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> userIdsByTelegramId = new ConcurrentHashMap<>();
+    private final Map<TelegramUserLinkEntity.Key, TelegramUserLinkEntity> links = new ConcurrentHashMap<>();
+    private final AtomicLong userSessions = new AtomicLong();
+
+    private final UserProvider userProvider;
+    private final UserSessionProvider sessionProvider;
+    private final AuthenticationSessionProvider authSessionProvider;
+    private final JpaConnectionProvider jpaConnection;
+    private final KeycloakUriInfo uriInfo;
+    private final RealmProvider realmProvider;
+    private final KeycloakSessionFactory sessionFactory;
+
+    /**
+     * @param realmAttributes attributes of the only realm, {@link Constants#TELEGRAM_BOT_TOKEN} among them
+     */
+    public InMemoryKeycloak(Map<String, String> realmAttributes) {
+        Map<String, String> attributes = Map.copyOf(realmAttributes);
+        realm = proxy(RealmModel.class, (method, args) -> switch (method) {
+            case "getId" -> "load-realm-id";
+            case "getName" -> "load";
+            case "getAttribute" -> args.length == 1 ? attributes.get((String) args[0]) : null;
+            case "isRegistrationAllowed" -> true;
+            default -> null;
+        });
+        client = proxy(ClientModel.class, (method, args) -> switch (method) {
+            case "getId" -> "load-client-id";
+            case "getClientId" -> "load-client";
+            default -> null;
+        });
+
+        userProvider = proxy(UserProvider.class, (method, args) -> switch (method) {
+            case "getUserById" -> users.get((String) args[1]);
+            case "searchForUserByUserAttributeStream" -> Constants.TELEGRAM_ID.equals(args[1])
+                ? userIdsByTelegramId.getOrDefault((String) args[2], Set.of()).stream().map(users::get)
+                : Stream.empty();
+            case "addUser" -> args.length == 2 ? addUser((String) args[1]) : null;
+            default -> null;
+        });
+        sessionProvider = proxy(UserSessionProvider.class, (method, args) -> switch (method) {
+            case "createUserSession" -> args.length == 10 ? userSession() : null;
+            case "getUserSessionsStream" -> Stream.empty();
+            default -> null;
+        });
+        authSessionProvider = proxy(AuthenticationSessionProvider.class, (method, args) ->
+            "createRootAuthenticationSession".equals(method) ? rootAuthSession() : null);
+        EntityManager entityManager = proxy(EntityManager.class, (method, args) -> switch (method) {
+            case "find" -> args[0] == TelegramUserLinkEntity.class ? links.get(args[1]) : null;
+            case "persist" -> {
+                TelegramUserLinkEntity link = (TelegramUserLinkEntity) args[0];
+                if (links.putIfAbsent(key(link), link) != null) {
+                    throw new EntityExistsException("Duplicate TELEGRAM_USER_LINK " + link.getTelegramId());
+                }
+                yield null;
+            }
+            case "remove" -> links.remove(key((TelegramUserLinkEntity) args[0]));
+            default -> null;
+        });
+        jpaConnection = proxy(JpaConnectionProvider.class, (method, args) ->
+            "getEntityManager".equals(method) ? entityManager : null);
+        uriInfo = proxy(KeycloakUriInfo.class, (method, args) ->
+            "getBaseUri".equals(method) ? URI.create("http://localhost:8080/") : null);
+        realmProvider = proxy(RealmProvider.class, (method, args) ->
+            "getRealm".equals(method) && realm.getId().equals(args[0]) ? realm : null);
+        sessionFactory = proxy(KeycloakSessionFactory.class, (method, args) ->
+            "create".equals(method) ? session(null) : null);
+    }
+
+    public RealmModel realm() {
+        return realm;
+    }
+
+    public ClientModel client() {
+        return client;
+    }
+
+    /**
+     * Creates a user already linked to the telegram id, as a previous login would.
+     */
+    public void seedUser(long telegramId) {
+        UserModel user = addUser("seeded-" + telegramId);
+        user.setSingleAttribute(Constants.TELEGRAM_ID, Long.toString(telegramId));
+        TelegramUserLinkEntity link = new TelegramUserLinkEntity(realm.getId(), telegramId, user.getId());
+        links.put(key(link), link);
+    }
+
+    /**
+     * @return new session of one request with the form parameters, or of a background job if init_data is null
+     */
+    public KeycloakSession session(String initData) {
+        MultivaluedHashMap<String, String> formParameters = new MultivaluedHashMap<>();
+        if (initData != null) {
+            formParameters.putSingle("init_data", initData);
+        }
+        HttpRequest httpRequest = proxy(HttpRequest.class, (method, args) ->
+            "getDecodedFormParameters".equals(method) ? formParameters : null);
+        KeycloakContext context = proxy(KeycloakContext.class, (method, args) -> switch (method) {
+            case "getRealm" -> realm;
+            case "getClient" -> client;
+            case "getHttpRequest" -> httpRequest;
+            case "getUri" -> uriInfo;
+            default -> null;
+        });
+        Map<String, Object> attributes = new HashMap<>();
+        List<KeycloakTransaction> afterCompletion = new ArrayList<>();
+        KeycloakTransactionManager transactionManager = proxy(KeycloakTransactionManager.class, (method, args) ->
+            "enlistAfterCompletion".equals(method) ? afterCompletion.add((KeycloakTransaction) args[0]) : null);
+        return proxy(KeycloakSession.class, (method, args) -> switch (method) {
+            case "getContext" -> context;
+            case "users" -> userProvider;
+            case "sessions" -> sessionProvider;
+            case "authenticationSessions" -> authSessionProvider;
+            case "getProvider" -> args[0] == JpaConnectionProvider.class ? jpaConnection : null;
+            case "realms" -> realmProvider;
+            case "getTransactionManager" -> transactionManager;
+            case "getKeycloakSessionFactory" -> sessionFactory;
+            case "getAttribute" -> attributes.get((String) args[0]);
+            case "setAttribute" -> attributes.put((String) args[0], args[1]);
+            case "close" -> {
+                for (KeycloakTransaction transaction : afterCompletion) {
+                    transaction.begin();
+                    transaction.commit();
+                }
+                afterCompletion.clear();
+                yield null;
+            }
+            default -> null;
+        });
+    }
+
+    public int userCount() {
+        return users.size();
+    }
+
+    public long userSessionCount() {
+        return userSessions.get();
+    }
+
+    /**
+     * @return number of telegram ids that have more than one user
+     */
+    public long duplicateTelegramUsers() {
+        return userIdsByTelegramId.values().stream().filter(ids -> ids.size() > 1).count();
+    }
+
+    private UserModel addUser(String username) {
+        String id = UUID.randomUUID().toString();
+        if (userIdsByName.putIfAbsent(username, id) != null) {
+            throw new ModelDuplicateException("User exists with same username");
+        }
+        UserModel user = user(id, username);
+        users.put(id, user);
+        return user;
+    }
+
+    private UserModel user(String id, String username) {
+        Map<String, List<String>> attributes = new ConcurrentHashMap<>();
+        Map<String, Object> fields = new ConcurrentHashMap<>();
+        return proxy(UserModel.class, (method, args) -> switch (method) {
+            case "getId" -> id;
+            case "getUsername" -> username;
+            case "getFirstName" -> fields.get("firstName");
+            case "getLastName" -> fields.get("lastName");
+            case "setFirstName" -> setField(fields, "firstName", args[0]);
+            case "setLastName" -> setField(fields, "lastName", args[0]);
+            case "isEnabled" -> fields.containsKey("enabled");
+            case "setEnabled" -> setField(fields, "enabled", (Boolean) args[0] ? Boolean.TRUE : null);
+            case "getAttributes" -> Map.copyOf(attributes);
+            case "getFirstAttribute" -> {
+                List<String> values = attributes.get((String) args[0]);
+                yield values == null || values.isEmpty() ? null : values.get(0);
+            }
+            case "setSingleAttribute" -> {
+                String name = (String) args[0];
+                String value = (String) args[1];
+                attributes.put(name, List.of(value));
+                if (Constants.TELEGRAM_ID.equals(name)) {
+                    userIdsByTelegramId.computeIfAbsent(value, key -> ConcurrentHashMap.newKeySet()).add(id);
+                }
+                yield null;
+            }
+            default -> null;
+        });
+    }
+
+    private static Object setField(Map<String, Object> fields, String name, Object value) {
+        if (value == null) {
+            fields.remove(name);
+        } else {
+            fields.put(name, value);
+        }
+        return null;
+    }
+
+    private UserSessionModel userSession() {
+        String id = Long.toString(userSessions.incrementAndGet());
+        Map<String, String> notes = new ConcurrentHashMap<>();
+        return proxy(UserSessionModel.class, (method, args) -> switch (method) {
+            case "getId" -> id;
+            case "getRealm" -> realm;
+            case "getNote" -> notes.get((String) args[0]);
+            case "getNotes" -> Map.copyOf(notes);
+            case "setNote" -> notes.put((String) args[0], (String) args[1]);
+            default -> null;
+        });
+    }
+
+    private RootAuthenticationSessionModel rootAuthSession() {
+        AuthenticationSessionModel authSession = proxy(AuthenticationSessionModel.class, (method, args) -> null);
+        return proxy(RootAuthenticationSessionModel.class, (method, args) ->
+            "createAuthenticationSession".equals(method) ? authSession : null);
+    }
+
+    private static TelegramUserLinkEntity.Key key(TelegramUserLinkEntity link) {
+        return new TelegramUserLinkEntity.Key(link.getRealmId(), link.getTelegramId());
+    }
+
+    /**
+     * @return proxy answering by method name, defaults (null, false, 0) for everything else
+     */
+    private static <T> T proxy(Class<T> type, Answer answer) {
+        Object proxy = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (self, method, args) -> {
+            Object[] arguments = args == null ? NO_ARGS : args;
+            switch (method.getName()) {
+                case "equals" -> {
+                    if (arguments.length == 1) {
+                        return self == arguments[0];
+                    }
+                }
+                case "hashCode" -> {
+                    if (arguments.length == 0) {
+                        return System.identityHashCode(self);
+                    }
+                }
+                case "toString" -> {
+                    if (arguments.length == 0) {
+                        return type.getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(self));
+                    }
+                }
+                default -> {
+                }
+            }
+            Object result = answer.answer(method.getName(), arguments);
+            Class<?> returnType = method.getReturnType();
+            if (result == null && returnType.isPrimitive() && returnType != void.class) {
+                return returnType == boolean.class ? Boolean.FALSE
+                    : returnType == long.class ? Long.valueOf(0)
+                    : returnType == int.class ? Integer.valueOf(0)
+                    : returnType == double.class ? Double.valueOf(0)
+                    : returnType == float.class ? Float.valueOf(0)
+                    : returnType == short.class ? Short.valueOf((short) 0)
+                    : returnType == byte.class ? Byte.valueOf((byte) 0)
+                    : Character.valueOf((char) 0);
+            }
+            return result;
+        });
+        return type.cast(proxy);
+    }
+
+    @FunctionalInterface
+    private interface Answer {
+
+        Object answer(String method, Object[] args);
+    }
+}
@@ -0,0 +1,229 @@
+package io.github.drednote.keycloak_telegram_authenticator.provider;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import io.github.drednote.keycloak_telegram_authenticator.Constants;
+import io.github.drednote.keycloak_telegram_authenticator.InitDataGenerator;
+import io.github.drednote.keycloak_telegram_authenticator.jpa.TelegramUserLinkEntity;
+import jakarta.persistence.EntityManager;
+import jakarta.ws.rs.core.MultivaluedHashMap;
+import java.net.URI;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import org.keycloak.Config.Scope;
+import org.keycloak.common.ClientConnection;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.events.EventBuilder;
+import org.keycloak.http.HttpRequest;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.ClientSessionContext;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.KeycloakUriInfo;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.models.UserSessionProvider;
+import org.keycloak.protocol.oidc.TokenExchangeContext;
+import org.keycloak.protocol.oidc.TokenManager;
+import org.keycloak.protocol.oidc.TokenManager.AccessTokenResponseBuilder;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.representations.AccessTokenResponse;
+import org.keycloak.services.cors.Cors;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.keycloak.sessions.AuthenticationSessionProvider;
+import org.keycloak.sessions.RootAuthenticationSessionModel;
+import org.mockito.MockedStatic;
+
+/**
+ * Keycloak session objects needed by {@link TelegramTokenExchangeProvider#exchange(TokenExchangeContext)}.
+ * <p>
+ * All mocks are stub-only, so they don't record invocations and don't grow while a benchmark is running. Token
+ * signing and client session attachment are stubbed, so only the work done by the provider itself is measured.
+ * <p>
+ * Static stubs are bound to the thread that created them, so an instance must be created and used on the same
+ * thread.
+ */
+public final class KeycloakStubs implements AutoCloseable {
+
+    public static final long TELEGRAM_ID = 123456789L;
+
+    private final MultivaluedHashMap<String, String> formParameters = new MultivaluedHashMap<>();
+    private final Map<TelegramUserLinkEntity.Key, TelegramUserLinkEntity> linkStore = new ConcurrentHashMap<>();
+    private final MockedStatic<TokenManager> tokenManagerStatic;
+    private final TokenExchangeContext context;
+    private final UserModel existingUser;
+
+    /**
+     * @param returningUser if true, user lookup finds an existing user, otherwise a new user is created
+     */
+    public KeycloakStubs(boolean returningUser) {
+        RealmModel realm = stub(RealmModel.class);
+        when(realm.getId()).thenReturn("benchmark-realm-id");
+        when(realm.getName()).thenReturn("benchmark");
+        when(realm.getAttribute(Constants.TELEGRAM_BOT_TOKEN)).thenReturn(InitDataGenerator.BOT_TOKEN);
+        when(realm.isRegistrationAllowed()).thenReturn(true);
+
+        ClientModel client = stub(ClientModel.class);
+        when(client.getId()).thenReturn("benchmark-client-id");
+        when(client.getClientId()).thenReturn("benchmark-client");
+
+        existingUser = user("existing-user");
+        when(existingUser.getFirstAttribute(Constants.TELEGRAM_ID)).thenReturn(Long.toString(TELEGRAM_ID));
+
+        UserProvider users = stub(UserProvider.class);
+        when(users.searchForUserByUserAttributeStream(any(), eq(Constants.TELEGRAM_ID), anyString()))
+            .thenAnswer(invocation -> returningUser ? Stream.of(existingUser) : Stream.empty());
+        when(users.getUserById(any(), anyString())).thenReturn(existingUser);
+        when(users.addUser(any(), anyString())).thenAnswer(invocation -> user(UUID.randomUUID().toString()));
+
+        UserSessionModel userSession = stub(UserSessionModel.class);
+        when(userSession.getId()).thenReturn("benchmark-user-session");
+        UserSessionProvider sessions = stub(UserSessionProvider.class);
+        when(sessions.createUserSession(any(), any(), any(), any(), any(), any(), anyBoolean(), any(), any(), any()))
+            .thenReturn(userSession);
+
+        AuthenticationSessionModel authSession = stub(AuthenticationSessionModel.class);
+        RootAuthenticationSessionModel rootAuthSession = stub(RootAuthenticationSessionModel.class);
+        when(rootAuthSession.createAuthenticationSession(any())).thenReturn(authSession);
+        AuthenticationSessionProvider authSessions = stub(AuthenticationSessionProvider.class);
+        when(authSessions.createRootAuthenticationSession(any())).thenReturn(rootAuthSession);
+
+        KeycloakUriInfo uriInfo = stub(KeycloakUriInfo.class);
+        when(uriInfo.getBaseUri()).thenReturn(URI.create("http://localhost:8080/"));
+        HttpRequest httpRequest = stub(HttpRequest.class);
+        when(httpRequest.getDecodedFormParameters()).thenReturn(formParameters);
+        KeycloakContext keycloakContext = stub(KeycloakContext.class);
+        when(keycloakContext.getRealm()).thenReturn(realm);
+        when(keycloakContext.getHttpRequest()).thenReturn(httpRequest);
+        when(keycloakContext.getUri()).thenReturn(uriInfo);
+
+        EntityManager entityManager = stub(EntityManager.class);
+        when(entityManager.find(eq(TelegramUserLinkEntity.class), any()))
+            .thenAnswer(invocation -> linkStore.get(invocation.<TelegramUserLinkEntity.Key>getArgument(1)));
+        doAnswer(invocation -> {
+            TelegramUserLinkEntity link = invocation.getArgument(0);
+            if (returningUser) {
+                linkStore.put(new TelegramUserLinkEntity.Key(link.getRealmId(), link.getTelegramId()), link);
+            }
+            return null;
+        }).when(entityManager).persist(any());
+        JpaConnectionProvider jpaConnection = stub(JpaConnectionProvider.class);
+        when(jpaConnection.getEntityManager()).thenReturn(entityManager);
+
+        KeycloakSession session = stub(KeycloakSession.class);
+        when(session.getContext()).thenReturn(keycloakContext);
+        when(session.users()).thenReturn(users);
+        when(session.sessions()).thenReturn(sessions);
+        when(session.authenticationSessions()).thenReturn(authSessions);
+        when(session.getProvider(JpaConnectionProvider.class)).thenReturn(jpaConnection);
+        // users are created in a transaction of their own, the stubs have none, so it is the same session
+        RealmProvider realms = stub(RealmProvider.class);
+        when(realms.getRealm(anyString())).thenReturn(realm);
+        KeycloakSessionFactory sessionFactory = stub(KeycloakSessionFactory.class);
+        when(sessionFactory.create()).thenReturn(session);
+        when(session.realms()).thenReturn(realms);
+        KeycloakTransactionManager transactionManager = stub(KeycloakTransactionManager.class);
+        // as if committed right away, so responses are cached as after a commit
+        doAnswer(invocation -> {
+            KeycloakTransaction transaction = invocation.getArgument(0);
+            transaction.begin();
+            transaction.commit();
+            return null;
+        }).when(transactionManager).enlistAfterCompletion(any());
+        when(session.getTransactionManager()).thenReturn(transactionManager);
+        when(session.getKeycloakSessionFactory()).thenReturn(sessionFactory);
+
+        AccessTokenResponseBuilder responseBuilder = stub(AccessTokenResponseBuilder.class);
+        when(responseBuilder.generateAccessToken()).thenReturn(responseBuilder);
+        when(responseBuilder.generateRefreshToken()).thenReturn(responseBuilder);
+        when(responseBuilder.getAccessToken()).thenAnswer(invocation -> {
+            AccessToken token = new AccessToken();
+            token.setScope("openid profile email");
+            return token;
+        });
+        when(responseBuilder.build()).thenAnswer(invocation -> new AccessTokenResponse());
+        TokenManager tokenManager = stub(TokenManager.class);
+        when(tokenManager.responseBuilder(any(), any(), any(), any(), any(), any())).thenReturn(responseBuilder);
+
+        ClientSessionContext clientSessionContext = stub(ClientSessionContext.class);
+        tokenManagerStatic = mockStatic(TokenManager.class, withSettings().stubOnly());
+        tokenManagerStatic.when(() -> TokenManager.attachAuthenticationSession(any(), any(), any()))
+            .thenReturn(clientSessionContext);
+
+        ClientConnection clientConnection = stub(ClientConnection.class);
+        when(clientConnection.getRemoteAddr()).thenReturn("127.0.0.1");
+
+        TokenExchangeContext.Params params = stub(TokenExchangeContext.Params.class);
+        context = stub(TokenExchangeContext.class);
+        when(context.getSession()).thenReturn(session);
+        when(context.getRealm()).thenReturn(realm);
+        when(context.getClient()).thenReturn(client);
+        when(context.getClientConnection()).thenReturn(clientConnection);
+        when(context.getClientAuthAttributes()).thenReturn(Map.of());
+        when(context.getEvent()).thenReturn(stub(EventBuilder.class));
+        when(context.getCors()).thenReturn(stub(Cors.class));
+        when(context.getTokenManager()).thenReturn(tokenManager);
+        when(context.getParams()).thenReturn(params);
+    }
+
+    /**
+     * @return factory initialized with default config
+     */
+    public static TelegramTokenExchangeProviderFactory factory() {
+        return factory(Map.of());
+    }
+
+    /**
+     * @param options SPI options that differ from the defaults
+     * @return factory initialized with the options
+     */
+    public static TelegramTokenExchangeProviderFactory factory(Map<String, Object> options) {
+        TelegramTokenExchangeProviderFactory factory = new TelegramTokenExchangeProviderFactory();
+        factory.init(mock(Scope.class, withSettings().stubOnly().defaultAnswer(invocation ->
+            options.getOrDefault(invocation.<String>getArgument(0),
+                invocation.getArguments().length > 1 ? invocation.getArgument(1) : null))));
+        factory.postInit(stub(KeycloakSessionFactory.class));
+        return factory;
+    }
+
+    public KeycloakSession session() {
+        return context.getSession();
+    }
+
+    public TokenExchangeContext context(String initData) {
+        formParameters.putSingle("init_data", initData);
+        return context;
+    }
+
+    @Override
+    public void close() {
+        tokenManagerStatic.close();
+    }
+
+    private static UserModel user(String id) {
+        UserModel user = stub(UserModel.class);
+        when(user.getId()).thenReturn(id);
+        when(user.getUsername()).thenReturn("user-" + id);
+        return user;
+    }
+
+    private static <T> T stub(Class<T> type) {
+        return mock(type, withSettings().stubOnly());
+    }
+}
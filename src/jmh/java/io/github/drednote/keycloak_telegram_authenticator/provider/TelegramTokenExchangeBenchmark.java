@@ -0,0 +1,68 @@
+package io.github.drednote.keycloak_telegram_authenticator.provider;
+
+import io.github.drednote.keycloak_telegram_authenticator.InitDataGenerator;
+import io.github.drednote.keycloak_telegram_authenticator.InitDataGenerator.Format;
+import io.github.drednote.keycloak_telegram_authenticator.InitDataGenerator.Size;
+import jakarta.ws.rs.core.Response;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end {@link TelegramTokenExchangeProvider#exchange} against {@link KeycloakStubs}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TelegramTokenExchangeBenchmark {
+
+    @Param({"QUERY", "JSON"})
+    private Format format;
+
+    @Param({"SMALL", "LARGE"})
+    private Size size;
+
+    @Param({"true", "false"})
+    private boolean returningUser;
+
+    private KeycloakStubs stubs;
+    private TelegramTokenExchangeProviderFactory factory;
+    private TelegramTokenExchangeProvider provider;
+    private String initData;
+
+    @Setup
+    public void setUp() {
+        stubs = new KeycloakStubs(returningUser);
+        // every exchange of a new user must miss, so nothing is cached for them
+        factory = KeycloakStubs.factory(returningUser ? Map.of() : Map.of("user-cache-max-size", 0L));
+        provider = (TelegramTokenExchangeProvider) factory.create(stubs.session());
+        initData = InitDataGenerator.generate(format, size, KeycloakStubs.TELEGRAM_ID, Instant.now().getEpochSecond());
+    }
+
+    @TearDown
+    public void tearDown() {
+        provider.close();
+        factory.close();
+        stubs.close();
+    }
+
+    @Benchmark
+    public Response exchange() {
+        return provider.exchange(stubs.context(initData));
+    }
+}
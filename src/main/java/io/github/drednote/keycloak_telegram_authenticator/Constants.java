@@ -5,7 +5,19 @@ public class Constants {
     public static final String TELEGRAM_ID = "telegram_id";
     public static final String TELEGRAM = "telegram";
     public static final String TELEGRAM_BOT_TOKEN = "telegram_bot_token";
+    public static final String TELEGRAM_BOT_TOKENS = "telegram_bot_tokens";
+    public static final String TELEGRAM_BOT_ID = "telegram_bot_id";
     public static final String TELEGRAM_AUTH_TIME_DELTA = "telegram_auth_time_delta";
+    public static final String TELEGRAM_EXCHANGE_CACHE_TTL = "telegram_exchange_cache_ttl";
+    public static final String TELEGRAM_SESSION_MODE = "telegram_session_mode";
+    public static final String TELEGRAM_TOKEN_MODE = "telegram_token_mode";
+    public static final String TELEGRAM_ACCESS_TOKEN_LIFESPAN = "telegram_access_token_lifespan";
+    public static final String TELEGRAM_VERIFICATION_MODE = "telegram_verification_mode";
+    public static final String TELEGRAM_RATE_LIMIT_ADDRESS = "telegram_rate_limit_address";
+    public static final String TELEGRAM_RATE_LIMIT_USER = "telegram_rate_limit_user";
+    public static final String TELEGRAM_PROFILE_SYNC = "telegram_profile_sync";
+    public static final String TELEGRAM_EVENT_SAMPLE_RATE = "telegram_event_sample_rate";
+    public static final String TELEGRAM_EVENT_AGGREGATION_INTERVAL = "telegram_event_aggregation_interval";
 
     private Constants() {
     }
@@ -0,0 +1,434 @@
+package io.github.drednote.keycloak_telegram_authenticator;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.crypto.Mac;
+
+/**
+ * Decoded {@code init_data} fields.
+ * <p>
+ * All keys and values are kept as UTF-8 bytes in one array, stored as {@code key=value} so a field can be fed to a
+ * {@link Mac} as is. Fields are sorted by key, which is the order required by the data-check string. Values are turned
+ * into {@link String} only on demand.
+ * <p>
+ * Both the query string form sent by Telegram and the json form ({@code {"user":"...","auth_date":"..."}}) are
+ * supported.
+ */
+public final class InitData {
+
+    public static final String HASH = "hash";
+    public static final String SIGNATURE = "signature";
+
+    private static final byte[] NEW_LINE = {'\n'};
+    private static final ThreadLocal<Buffer> buffers = ThreadLocal.withInitial(Buffer::new);
+
+    /**
+     * UTF-8 bytes of all fields
+     */
+    private final byte[] bytes;
+    /**
+     * Four offsets per field: key start, key end, value start, value end
+     */
+    private final int[] fields;
+    private final int size;
+
+    private InitData(byte[] bytes, int[] fields, int size) {
+        this.bytes = bytes;
+        this.fields = fields;
+        this.size = size;
+    }
+
+    public static InitData parse(String initData) {
+        if (initData == null) {
+            throw new IllegalArgumentException("init_data is null");
+        }
+        Buffer buffer = buffers.get();
+        buffer.reset();
+        try {
+            if (isJson(initData)) {
+                parseJson(initData, buffer);
+            } else {
+                parseQuery(initData, buffer);
+            }
+            return buffer.toInitData();
+        } finally {
+            buffer.trim();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(String key) {
+        return indexOf(key) >= 0;
+    }
+
+    public String get(String key) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+        int start = fields[index * 4 + 2];
+        return new String(bytes, start, fields[index * 4 + 3] - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses a decimal value without creating a string.
+     *
+     * @throws NumberFormatException if the field is absent or is not a number
+     */
+    public long getLong(String key) {
+        int index = indexOf(key);
+        if (index < 0) {
+            throw new NumberFormatException(key + " is absent");
+        }
+        int start = fields[index * 4 + 2];
+        int end = fields[index * 4 + 3];
+        if (start == end || end - start > 18) {
+            throw new NumberFormatException("Invalid " + key);
+        }
+        long result = 0;
+        for (int i = start; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Invalid " + key);
+            }
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+
+    /**
+     * Writes the data-check string (all fields except {@code hash} sorted by key and joined with {@code \n}) to the
+     * mac.
+     */
+    public void writeDataCheck(Mac mac) {
+        try {
+            writeDataCheck(mac::update, false);
+        } catch (SignatureException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Writes the data-check string of third-party validation (all fields except {@code hash} and {@code signature})
+     * to the signature. The {@code <bot_id>:WebAppData} line must be written by the caller.
+     */
+    public void writeDataCheck(Signature signature) throws SignatureException {
+        writeDataCheck(signature::update, true);
+    }
+
+    private void writeDataCheck(DataCheckSink sink, boolean excludeSignature) throws SignatureException {
+        boolean first = true;
+        for (int i = 0; i < size; i++) {
+            if (compareKey(i, HASH) == 0 || excludeSignature && compareKey(i, SIGNATURE) == 0) {
+                continue;
+            }
+            if (!first) {
+                sink.update(NEW_LINE, 0, 1);
+            }
+            first = false;
+            int start = fields[i * 4];
+            sink.update(bytes, start, fields[i * 4 + 3] - start);
+        }
+    }
+
+    /**
+     * Compares the hex {@code hash} field with the calculated hash in constant time.
+     */
+    public boolean hashEquals(byte[] calculated) {
+        int index = indexOf(HASH);
+        if (index < 0) {
+            return false;
+        }
+        int start = fields[index * 4 + 2];
+        if (fields[index * 4 + 3] - start != calculated.length * 2) {
+            return false;
+        }
+        int diff = 0;
+        for (int i = 0; i < calculated.length; i++) {
+            int high = hexValue(bytes[start + i * 2]);
+            int low = hexValue(bytes[start + i * 2 + 1]);
+            diff |= ((high << 4) | low) ^ (calculated[i] & 0xff);
+        }
+        return diff == 0;
+    }
+
+    public Map<String, String> toMap() {
+        Map<String, String> map = new LinkedHashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            int keyStart = fields[i * 4];
+            int valueStart = fields[i * 4 + 2];
+            map.put(new String(bytes, keyStart, fields[i * 4 + 1] - keyStart, StandardCharsets.UTF_8),
+                new String(bytes, valueStart, fields[i * 4 + 3] - valueStart, StandardCharsets.UTF_8));
+        }
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return toMap().toString();
+    }
+
+    private int indexOf(String key) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareKey(mid, key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int compareKey(int index, String key) {
+        int start = fields[index * 4];
+        int length = fields[index * 4 + 1] - start;
+        int min = Math.min(length, key.length());
+        for (int i = 0; i < min; i++) {
+            int cmp = (bytes[start + i] & 0xff) - key.charAt(i);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - key.length();
+    }
+
+    private static boolean isJson(String initData) {
+        for (int i = 0; i < initData.length(); i++) {
+            char c = initData.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                return c == '{';
+            }
+        }
+        return false;
+    }
+
+    private static void parseQuery(String initData, Buffer buffer) {
+        int length = initData.length();
+        int pairStart = buffer.length;
+        boolean hasValue = false;
+        for (int i = 0; i < length; i++) {
+            char c = initData.charAt(i);
+            if (c == '&') {
+                buffer.endPair(pairStart, hasValue);
+                pairStart = buffer.length;
+                hasValue = false;
+            } else if (c == '=' && !hasValue) {
+                buffer.startValue();
+                hasValue = true;
+            } else if (c == '%') {
+                if (i + 2 >= length) {
+                    throw new IllegalArgumentException("Incomplete escape sequence at " + i);
+                }
+                int high = hexValue(initData.charAt(i + 1));
+                int low = hexValue(initData.charAt(i + 2));
+                if (high < 0 || low < 0) {
+                    throw new IllegalArgumentException("Invalid escape sequence at " + i);
+                }
+                buffer.write((byte) ((high << 4) | low));
+                i += 2;
+            } else if (c == '+') {
+                buffer.write((byte) ' ');
+            } else if (c < 0x80) {
+                buffer.write((byte) c);
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                       && Character.isLowSurrogate(initData.charAt(i + 1))) {
+                buffer.writeCodePoint(Character.toCodePoint(c, initData.charAt(++i)));
+            } else {
+                buffer.writeCodePoint(c);
+            }
+        }
+        buffer.endPair(pairStart, hasValue);
+    }
+
+    private static void parseJson(String initData, Buffer buffer) {
+        try (JsonParser parser = Json.FACTORY.createParser(initData)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IllegalArgumentException("init_data must be a json object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                int pairStart = buffer.length;
+                buffer.write(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+                JsonToken value = parser.nextToken();
+                if (value == JsonToken.VALUE_NULL) {
+                    buffer.endPair(pairStart, false);
+                    continue;
+                }
+                if (value == null || !value.isScalarValue()) {
+                    throw new IllegalArgumentException("Value of " + parser.currentName() + " must be a string");
+                }
+                buffer.startValue();
+                buffer.write(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+                buffer.endPair(pairStart, true);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed to parse init_data json", e);
+        }
+    }
+
+    private static int hexValue(int c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    @FunctionalInterface
+    private interface DataCheckSink {
+
+        void update(byte[] input, int offset, int length) throws SignatureException;
+    }
+
+    /**
+     * Thread confined scratch space, so parsing allocates only the final arrays of {@link InitData}.
+     */
+    private static final class Buffer {
+
+        private static final int INITIAL_BYTES = 1024;
+        private static final int INITIAL_FIELDS = 4 * 16;
+        // real init_data is a few KB, a larger one must not stay pinned to the thread
+        private static final int MAX_RETAINED_BYTES = 16 * 1024;
+        private static final int MAX_RETAINED_FIELDS = 4 * 64;
+
+        private byte[] bytes = new byte[INITIAL_BYTES];
+        private int length;
+        private int[] fields = new int[INITIAL_FIELDS];
+        private int size;
+        private int keyEnd;
+
+        void reset() {
+            length = 0;
+            size = 0;
+        }
+
+        /**
+         * Drops arrays grown by an unusually large init_data.
+         */
+        void trim() {
+            if (bytes.length > MAX_RETAINED_BYTES) {
+                bytes = new byte[INITIAL_BYTES];
+            }
+            if (fields.length > MAX_RETAINED_FIELDS) {
+                fields = new int[INITIAL_FIELDS];
+            }
+        }
+
+        void write(byte b) {
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, length * 2);
+            }
+            bytes[length++] = b;
+        }
+
+        void write(char[] chars, int offset, int count) {
+            int end = offset + count;
+            for (int i = offset; i < end; i++) {
+                char c = chars[i];
+                if (c < 0x80) {
+                    write((byte) c);
+                } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars[i + 1])) {
+                    writeCodePoint(Character.toCodePoint(c, chars[++i]));
+                } else {
+                    writeCodePoint(c);
+                }
+            }
+        }
+
+        void writeCodePoint(int codePoint) {
+            if (codePoint < 0x80) {
+                write((byte) codePoint);
+            } else if (codePoint < 0x800) {
+                write((byte) (0xc0 | (codePoint >> 6)));
+                write((byte) (0x80 | (codePoint & 0x3f)));
+            } else if (Character.isSurrogate((char) codePoint) && codePoint <= Character.MAX_VALUE) {
+                // unpaired surrogate, same replacement as String.getBytes
+                write((byte) '?');
+            } else if (codePoint < 0x10000) {
+                write((byte) (0xe0 | (codePoint >> 12)));
+                write((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+                write((byte) (0x80 | (codePoint & 0x3f)));
+            } else {
+                write((byte) (0xf0 | (codePoint >> 18)));
+                write((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+                write((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+                write((byte) (0x80 | (codePoint & 0x3f)));
+            }
+        }
+
+        void startValue() {
+            keyEnd = length;
+            write((byte) '=');
+        }
+
+        /**
+         * Inserts the pair keeping fields sorted by key. A pair without a value is dropped and a repeated key replaces
+         * the previous value.
+         */
+        void endPair(int pairStart, boolean hasValue) {
+            if (!hasValue) {
+                length = pairStart;
+                return;
+            }
+            int position = size;
+            while (position > 0) {
+                int cmp = compareKeys(position - 1, pairStart, keyEnd);
+                if (cmp == 0) {
+                    setField(position - 1, pairStart);
+                    return;
+                } else if (cmp < 0) {
+                    break;
+                }
+                position--;
+            }
+            if ((size + 1) * 4 > fields.length) {
+                fields = Arrays.copyOf(fields, fields.length * 2);
+            }
+            System.arraycopy(fields, position * 4, fields, position * 4 + 4, (size - position) * 4);
+            size++;
+            setField(position, pairStart);
+        }
+
+        InitData toInitData() {
+            return new InitData(Arrays.copyOf(bytes, length), Arrays.copyOf(fields, size * 4), size);
+        }
+
+        private void setField(int index, int pairStart) {
+            fields[index * 4] = pairStart;
+            fields[index * 4 + 1] = keyEnd;
+            fields[index * 4 + 2] = keyEnd + 1;
+            fields[index * 4 + 3] = length;
+        }
+
+        private int compareKeys(int index, int keyStart, int keyEnd) {
+            int start = fields[index * 4];
+            int end = fields[index * 4 + 1];
+            int min = Math.min(end - start, keyEnd - keyStart);
+            for (int i = 0; i < min; i++) {
+                int cmp = (bytes[start + i] & 0xff) - (bytes[keyStart + i] & 0xff);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return (end - start) - (keyEnd - keyStart);
+        }
+    }
+}
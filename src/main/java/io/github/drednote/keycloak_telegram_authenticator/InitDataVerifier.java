@@ -0,0 +1,18 @@
+package io.github.drednote.keycloak_telegram_authenticator;
+
+/**
+ * Checks that {@link InitData} was issued by Telegram.
+ */
+public interface InitDataVerifier {
+
+    /**
+     * @return true if the data is authentic
+     * @throws IllegalArgumentException if the data has no hash or signature to check
+     */
+    boolean verify(InitData data);
+
+    /**
+     * @return name of the init_data field checked by {@link #verify(InitData)}
+     */
+    String proofField();
+}
@@ -0,0 +1,15 @@
+package io.github.drednote.keycloak_telegram_authenticator;
+
+import com.fasterxml.jackson.core.JsonFactory;
+
+/**
+ * Jackson factory shared by all streaming parsers of the plugin. It is thread safe and holds the symbol tables and
+ * buffer recyclers, so parsers created from it are cheap.
+ */
+final class Json {
+
+    static final JsonFactory FACTORY = new JsonFactory();
+
+    private Json() {
+    }
+}
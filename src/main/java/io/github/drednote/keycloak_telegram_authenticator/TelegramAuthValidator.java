@@ -1,143 +1,131 @@
 package io.github.drednote.keycloak_telegram_authenticator;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.hash.HashCode;
-import com.google.common.hash.Hashing;
-import java.net.URISyntaxException;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import java.time.Instant;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.TreeMap;
 import java.util.UUID;
-import org.apache.hc.core5.net.URIBuilder;
+import java.util.concurrent.ExecutionException;
 import org.jboss.logging.Logger;
 
 public class TelegramAuthValidator {
 
-    private static final Charset UTF_8 = StandardCharsets.UTF_8;
-    private static final byte[] WEB_APP_DATA = "WebAppData".getBytes(UTF_8);
     private static final Logger log = Logger.getLogger(TelegramAuthValidator.class);
 
-    private static final ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+    private static final Cache<String, TelegramSecretKey> secretKeys = CacheBuilder.newBuilder()
+        .maximumSize(256)
+        .build();
 
     private TelegramAuthValidator() {
     }
 
     public static AuthResponse validateData(AuthParams params) {
-        // Разбираем строку initData в Map
-        Map<String, String> dataMap = parseInitData(params.initData);
-        String hash = dataMap.remove("hash");
-
-        String dataCheck = getDataCheck(dataMap);
+        // Разбираем строку initData
+        InitData data = InitData.parse(params.initData);
+        return verifyData(data, params);
+    }
 
-        // Генерируем секретный ключ
-        byte[] secretKey = hmacSHA256(params.botToken, WEB_APP_DATA).asBytes();
+    /**
+     * Same as {@link #validateData(AuthParams)} for already parsed data, {@link AuthParams#initData()} is ignored.
+     */
+    public static AuthResponse verifyData(InitData data, AuthParams params) {
+        return verifyData(data, parseUser(data), params);
+    }
 
-        // Вычисляем HMAC для строки проверки данных
-        String calculatedHash = hmacSHA256(dataCheck, secretKey).toString();
+    /**
+     * Same as {@link #verifyData(InitData, AuthParams)} with already parsed user.
+     */
+    public static AuthResponse verifyData(InitData data, TelegramUser user, AuthParams params) {
+        // Сравниваем хэши (или подпись) и проверяем дату
+        boolean hashValid = params.verifier.verify(data);
+        boolean dateValid = hashValid && checkAuthDate(data, params);
 
-        boolean hashValid = false;
-        boolean dateValid = false;
+        return new AuthResponse(hashValid, dateValid, data, user);
+    }
 
-        // Сравниваем хэши
-        if (hash.equals(calculatedHash)) {
-            hashValid = true;
-            dateValid = checkAuthDate(dataMap, params);
+    /**
+     * @return user of the data, with random username if telegram user has none
+     * @throws IllegalArgumentException if there is no user or it has no id
+     */
+    public static TelegramUser parseUser(InitData data) {
+        String user = data == null ? null : data.get("user");
+        if (user == null) {
+            throw new IllegalArgumentException("data is null");
         }
-
-        dataMap.put("hash", hash);
-        return new AuthResponse(hashValid, dateValid, dataMap);
+        return parseUser(user);
     }
 
-    private static boolean checkAuthDate(Map<String, String> dataMap, AuthParams params) {
-        if (!params.checkDate) {
-            return true;
+    /**
+     * Parses the user json of init_data, or a line of the same shape. A user without username gets a random one.
+     *
+     * @throws IllegalArgumentException if the json can't be parsed or has no id
+     */
+    public static TelegramUser parseUser(String user) {
+        TelegramUser appUser = TelegramUserReader.read(user);
+        if (appUser.getId() == null) {
+            throw new IllegalArgumentException("id is null");
         }
-        // Проверка поля auth_date на актуальность
-        long authDate = Long.parseLong(dataMap.get("auth_date"));
-        long currentTime = Instant.now().getEpochSecond();
-
-        return currentTime - authDate <= params.authDelta;
+        if (appUser.getUserName() == null || appUser.getUserName().isBlank()) {
+            appUser.setUserName(UUID.randomUUID().toString());
+        }
+        return appUser;
     }
 
-    private static String getDataCheck(Map<String, String> dataMap) {
-        // Сортируем ключи и формируем строку проверки данных
-        TreeMap<String, String> sortedMap = new TreeMap<>(dataMap);
-        StringBuilder dataCheck = new StringBuilder();
-
-        for (Map.Entry<String, String> entry : sortedMap.entrySet()) {
-            dataCheck.append(entry.getKey()).append("=").append(entry.getValue()).append("\n");
+    /**
+     * Drops the cached secret key of the bot token. Must be called when the token is changed or removed.
+     */
+    public static void evictSecretKey(String botToken) {
+        if (botToken != null) {
+            secretKeys.invalidate(botToken);
         }
-
-        dataCheck.delete(dataCheck.length() - 1, dataCheck.length());
-
-        return dataCheck.toString();
     }
 
-    private static Map<String, String> parseInitData(String initData) {
-        Map<String, String> params = new HashMap<>();
+    /**
+     * @return secret key of the bot token, derived once and then taken from the cache
+     */
+    public static TelegramSecretKey getSecretKey(String botToken) {
         try {
-            URIBuilder builder = new URIBuilder(initData);
-            String path = String.join("", builder.getPathSegments());
-            String[] pairs = path.split("&");
-
-            for (String pair : pairs) {
-                String[] keyValue = pair.split("=", 2);
-                if (keyValue.length == 2) {
-                    params.put(keyValue[0], keyValue[1]);
-                }
-            }
-            return params;
-        } catch (URISyntaxException e) {
-            try {
-                return objectMapper.readValue(initData, new TypeReference<>() {});
-            } catch (JsonProcessingException ex) {
-                log.error("Failed to parse init data", ex);
-            }
+            return secretKeys.get(botToken, () -> TelegramSecretKey.derive(botToken));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to derive secret key", e.getCause());
         }
-        return params;
     }
 
-    private static HashCode hmacSHA256(String data, byte[] key) {
-        return Hashing.hmacSha256(key).hashString(data, UTF_8);
+    private static boolean checkAuthDate(InitData data, AuthParams params) {
+        return !params.checkDate || checkAuthDate(data, params.authDelta);
+    }
+
+    /**
+     * Checks only the date, not the hash, so it may run before verification to drop stale data cheaply.
+     *
+     * @param authDelta in seconds
+     * @throws IllegalArgumentException if there is no valid auth_date
+     */
+    public static boolean checkAuthDate(InitData data, int authDelta) {
+        // Проверка поля auth_date на актуальность
+        long authDate = data.getLong("auth_date");
+        long currentTime = Instant.now().getEpochSecond();
+
+        return currentTime - authDate <= authDelta;
     }
 
     /**
      * @param authDelta in seconds
      */
     public record AuthParams(
-        String initData, String botToken, boolean checkDate, int authDelta
-    ) {}
+        String initData, InitDataVerifier verifier, boolean checkDate, int authDelta
+    ) {
+
+        public AuthParams(String initData, String botToken, boolean checkDate, int authDelta) {
+            this(initData, getSecretKey(botToken), checkDate, authDelta);
+        }
+    }
 
     public record AuthResponse(
-        boolean hashValid, boolean dateValid, Map<String, String> data, TelegramUser user
+        boolean hashValid, boolean dateValid, InitData data, TelegramUser user
     ) {
 
-        public AuthResponse(boolean hashValid, boolean dateValid, Map<String, String> data) {
+        public AuthResponse(boolean hashValid, boolean dateValid, InitData data) {
             this(hashValid, dateValid, data, parseUser(data));
         }
-
-        private static TelegramUser parseUser(Map<String, String> data) {
-            if (data == null || data.get("user") == null) {
-                throw new IllegalArgumentException("data is null");
-            }
-            String user = data.get("user");
-            try {
-                TelegramUser appUser = objectMapper.readValue(user, TelegramUser.class);
-                if (appUser.getId() == null) {
-                    throw new IllegalArgumentException("id is null");
-                }
-                if (appUser.getUserName() == null || appUser.getUserName().isBlank()) {
-                    appUser.setUserName(UUID.randomUUID().toString());
-                }
-                return appUser;
-            } catch (JsonProcessingException e) {
-                throw new IllegalArgumentException("Failed to parse user", e);
-            }
-        }
     }
 }
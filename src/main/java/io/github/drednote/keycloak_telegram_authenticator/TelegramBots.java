@@ -0,0 +1,119 @@
+package io.github.drednote.keycloak_telegram_authenticator;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import org.jboss.logging.Logger;
+
+/**
+ * Secret keys of several bots indexed by bot id (the part of a token before {@code :}), so a request selects its key
+ * with one lookup whatever the number of bots.
+ * <p>
+ * Tokens are stored in the realm as one string separated by {@value #DELIMITER}. Indexes are cached by that string,
+ * so a changed set of tokens gets a new index. The old one holds the secret keys of its tokens, so it must be
+ * {@link #evict(String) evicted} when tokens are changed or removed.
+ */
+public final class TelegramBots {
+
+    public static final String DELIMITER = "##";
+
+    private static final Logger log = Logger.getLogger(TelegramBots.class);
+    private static final TelegramBots EMPTY = new TelegramBots(Map.of());
+    private static final Cache<String, TelegramBots> indexes = CacheBuilder.newBuilder()
+        .maximumSize(256)
+        .build();
+
+    private final Map<Long, TelegramSecretKey> secretKeys;
+
+    private TelegramBots(Map<Long, TelegramSecretKey> secretKeys) {
+        this.secretKeys = secretKeys;
+    }
+
+    /**
+     * @param tokens bot tokens separated by {@value #DELIMITER}, may be null
+     */
+    public static TelegramBots of(String tokens) {
+        if (tokens == null || tokens.isBlank()) {
+            return EMPTY;
+        }
+        try {
+            return indexes.get(tokens, () -> index(tokens));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to index bot tokens", e.getCause());
+        }
+    }
+
+    /**
+     * Drops the cached index of the tokens.
+     *
+     * @param tokens bot tokens separated by {@value #DELIMITER}, may be null
+     */
+    public static void evict(String tokens) {
+        if (tokens != null) {
+            indexes.invalidate(tokens);
+        }
+    }
+
+    /**
+     * @return id of the bot or null if the token has no valid id
+     */
+    public static Long botId(String token) {
+        int colon = token.indexOf(':');
+        if (colon <= 0) {
+            return null;
+        }
+        try {
+            return Long.parseLong(token.substring(0, colon).trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return secret key of the bot or null if the bot is unknown
+     */
+    public TelegramSecretKey get(long botId) {
+        return secretKeys.get(botId);
+    }
+
+    /**
+     * @return the only bot's key, or null if there are no bots or more than one
+     */
+    public TelegramSecretKey single() {
+        return secretKeys.size() == 1 ? secretKeys.values().iterator().next() : null;
+    }
+
+    public boolean contains(long botId) {
+        return secretKeys.containsKey(botId);
+    }
+
+    /**
+     * @return the only bot's id, or null if there are no bots or more than one
+     */
+    public Long singleId() {
+        return secretKeys.size() == 1 ? secretKeys.keySet().iterator().next() : null;
+    }
+
+    public int size() {
+        return secretKeys.size();
+    }
+
+    private static TelegramBots index(String tokens) {
+        Map<Long, TelegramSecretKey> secretKeys = new HashMap<>();
+        for (String token : tokens.split(DELIMITER)) {
+            token = token.trim();
+            if (token.isEmpty()) {
+                continue;
+            }
+            Long botId = botId(token);
+            if (botId == null) {
+                log.warn("Skipping telegram bot token without a bot id");
+                continue;
+            }
+            secretKeys.put(botId, TelegramAuthValidator.getSecretKey(token));
+        }
+        return new TelegramBots(Map.copyOf(secretKeys));
+    }
+}
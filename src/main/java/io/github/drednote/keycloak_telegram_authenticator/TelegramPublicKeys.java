@@ -0,0 +1,143 @@
+package io.github.drednote.keycloak_telegram_authenticator;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Telegram Ed25519 public keys for third-party validation of {@code init_data} by its {@code signature} field, which
+ * doesn't need the bot token.
+ * <p>
+ * Keys are parsed once. Every key has one {@link Signature} per thread already initialized for verification, which
+ * returns to that state after {@link Signature#verify(byte[])}, so it is reused for the next request.
+ */
+public final class TelegramPublicKeys {
+
+    /**
+     * Public key of production environment, hex encoded
+     */
+    public static final String PRODUCTION = "e7bf03a2fa4602af4580703d88dda5bb59f32ed8b02a56c187fe7d34caed242d";
+    /**
+     * Public key of test environment, hex encoded
+     */
+    public static final String TEST = "40055058a4ee38156a06562e52eece92a771bcd8346a8c4615cb7376eddf72ec";
+
+    private static final String ED25519 = "Ed25519";
+    private static final int SIGNATURE_LENGTH = 64;
+    /**
+     * DER prefix of X.509 SubjectPublicKeyInfo of a raw Ed25519 key
+     */
+    private static final byte[] X509_PREFIX = HexFormat.of().parseHex("302a300506032b6570032100");
+
+    private final List<ThreadLocal<Signature>> verifiers;
+    private final Map<Long, InitDataVerifier> bots = new ConcurrentHashMap<>();
+
+    private TelegramPublicKeys(List<ThreadLocal<Signature>> verifiers) {
+        this.verifiers = verifiers;
+    }
+
+    /**
+     * @param hexKeys raw 32 byte keys, hex encoded
+     */
+    public static TelegramPublicKeys parse(String... hexKeys) {
+        List<ThreadLocal<Signature>> verifiers = new ArrayList<>();
+        for (String hexKey : hexKeys) {
+            PublicKey publicKey = toPublicKey(hexKey.trim());
+            // fail fast on broken provider instead of on first request
+            newVerifier(publicKey);
+            verifiers.add(ThreadLocal.withInitial(() -> newVerifier(publicKey)));
+        }
+        return new TelegramPublicKeys(List.copyOf(verifiers));
+    }
+
+    /**
+     * Bot id is part of the signed data, so it must come from trusted configuration, not from the request.
+     *
+     * @return verifier of init_data issued for the bot
+     */
+    public InitDataVerifier forBot(long botId) {
+        return bots.computeIfAbsent(botId, BotVerifier::new);
+    }
+
+    private static PublicKey toPublicKey(String hexKey) {
+        byte[] rawKey = HexFormat.of().parseHex(hexKey);
+        byte[] encoded = new byte[X509_PREFIX.length + rawKey.length];
+        System.arraycopy(X509_PREFIX, 0, encoded, 0, X509_PREFIX.length);
+        System.arraycopy(rawKey, 0, encoded, X509_PREFIX.length, rawKey.length);
+        try {
+            return KeyFactory.getInstance(ED25519).generatePublic(new X509EncodedKeySpec(encoded));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Invalid telegram public key " + hexKey, e);
+        }
+    }
+
+    private static Signature newVerifier(PublicKey publicKey) {
+        try {
+            Signature signature = Signature.getInstance(ED25519);
+            signature.initVerify(publicKey);
+            return signature;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to init " + ED25519, e);
+        }
+    }
+
+    private final class BotVerifier implements InitDataVerifier {
+
+        private final byte[] prefix;
+
+        private BotVerifier(long botId) {
+            this.prefix = (botId + ":WebAppData\n").getBytes(StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        public boolean verify(InitData data) {
+            String signatureValue = data.get(InitData.SIGNATURE);
+            if (signatureValue == null) {
+                throw new IllegalArgumentException("signature is null");
+            }
+            byte[] signature;
+            try {
+                signature = Base64.getUrlDecoder().decode(signatureValue);
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+            if (signature.length != SIGNATURE_LENGTH) {
+                return false;
+            }
+            for (ThreadLocal<Signature> verifier : verifiers) {
+                if (verify(verifier, data, signature)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String proofField() {
+            return InitData.SIGNATURE;
+        }
+
+        private boolean verify(ThreadLocal<Signature> verifier, InitData data, byte[] signature) {
+            Signature sig = verifier.get();
+            try {
+                sig.update(prefix);
+                data.writeDataCheck(sig);
+                return sig.verify(signature);
+            } catch (SignatureException e) {
+                // state of the instance is unknown now, next call gets a new one
+                verifier.remove();
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package io.github.drednote.keycloak_telegram_authenticator;
+
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Secret key derived from a bot token as {@code HMAC_SHA256("WebAppData", botToken)}.
+ * <p>
+ * Holds one {@link Mac} per thread that is already initialized with the derived key, so a validation only pays for
+ * hashing the data-check string. {@link Mac#doFinal()} resets the instance to its initialized state, so it can be
+ * reused right away.
+ */
+public final class TelegramSecretKey implements InitDataVerifier {
+
+    private static final String HMAC_SHA256 = "HmacSHA256";
+    private static final byte[] WEB_APP_DATA = "WebAppData".getBytes(StandardCharsets.UTF_8);
+    private static final ThreadLocal<byte[]> hashBuffers = ThreadLocal.withInitial(() -> new byte[32]);
+
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> macs;
+
+    private TelegramSecretKey(byte[] key) {
+        this.key = new SecretKeySpec(key, HMAC_SHA256);
+        this.macs = ThreadLocal.withInitial(() -> newMac(this.key));
+    }
+
+    public static TelegramSecretKey derive(String botToken) {
+        Mac mac = newMac(new SecretKeySpec(WEB_APP_DATA, HMAC_SHA256));
+        return new TelegramSecretKey(mac.doFinal(botToken.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Compares HMAC of the data-check string with the {@code hash} field.
+     */
+    @Override
+    public boolean verify(InitData data) {
+        if (!data.contains(InitData.HASH)) {
+            throw new IllegalArgumentException("hash is null");
+        }
+        Mac mac = mac();
+        data.writeDataCheck(mac);
+        byte[] calculatedHash = hashBuffers.get();
+        try {
+            mac.doFinal(calculatedHash, 0);
+        } catch (ShortBufferException e) {
+            throw new IllegalStateException(e);
+        }
+        return data.hashEquals(calculatedHash);
+    }
+
+    @Override
+    public String proofField() {
+        return InitData.HASH;
+    }
+
+    /**
+     * @return {@link Mac} confined to the current thread and initialized with this key
+     */
+    public Mac mac() {
+        return macs.get();
+    }
+
+    private static Mac newMac(SecretKeySpec key) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_SHA256);
+            mac.init(key);
+            return mac;
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new IllegalStateException("Unable to init " + HMAC_SHA256, e);
+        }
+    }
+}
@@ -1,10 +1,11 @@
 package io.github.drednote.keycloak_telegram_authenticator;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import jakarta.annotation.Nonnull;
 import jakarta.annotation.Nullable;
-import lombok.Data;
+import java.util.Map;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
@@ -30,4 +31,23 @@ public class TelegramUser {
     @JsonProperty("last_name")
     @Nullable
     private String lastName;
+
+    @JsonProperty("photo_url")
+    @Nullable
+    private String photoUrl;
+
+    @JsonProperty("language_code")
+    @Nullable
+    private String languageCode;
+
+    @JsonProperty("is_premium")
+    @Nullable
+    private Boolean isPremium;
+
+    /**
+     * All scalar fields of the user json as text, including the ones above
+     */
+    @JsonIgnore
+    @Nonnull
+    private Map<String, String> fields = Map.of();
 }
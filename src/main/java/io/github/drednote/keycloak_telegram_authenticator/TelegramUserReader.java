@@ -0,0 +1,61 @@
+package io.github.drednote.keycloak_telegram_authenticator;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the {@code user} json of init_data in one streaming pass into the typed fields of {@link TelegramUser} and
+ * the map of all its scalar fields as text. Nested objects and arrays are skipped.
+ */
+public final class TelegramUserReader {
+
+    private TelegramUserReader() {
+    }
+
+    /**
+     * @throws IllegalArgumentException if the json is malformed or is not an object
+     */
+    public static TelegramUser read(String json) {
+        try (JsonParser parser = Json.FACTORY.createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IllegalArgumentException("user is not a json object");
+            }
+            TelegramUser user = new TelegramUser();
+            Map<String, String> fields = new HashMap<>();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.currentName();
+                JsonToken token = parser.nextToken();
+                if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                    parser.skipChildren();
+                    continue;
+                }
+                if (token == JsonToken.VALUE_NULL) {
+                    continue;
+                }
+                String value = parser.getText();
+                fields.put(name, value);
+                switch (name) {
+                    case "id" -> user.setId(token == JsonToken.VALUE_NUMBER_INT
+                        ? parser.getLongValue()
+                        : Long.valueOf(value));
+                    case "username" -> user.setUserName(value);
+                    case "first_name" -> user.setFirstName(value);
+                    case "last_name" -> user.setLastName(value);
+                    case "photo_url" -> user.setPhotoUrl(value);
+                    case "language_code" -> user.setLanguageCode(value);
+                    case "is_premium" -> user.setIsPremium(Boolean.valueOf(value));
+                    default -> {
+                        // other fields are only kept in the map
+                    }
+                }
+            }
+            user.setFields(fields);
+            return user;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed to parse user", e);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package io.github.drednote.keycloak_telegram_authenticator.jpa;
+
+import java.util.List;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+
+public class TelegramJpaEntityProvider implements JpaEntityProvider {
+
+    @Override
+    public List<Class<?>> getEntities() {
+        return List.of(TelegramUserLinkEntity.class);
+    }
+
+    @Override
+    public String getChangelogLocation() {
+        return "META-INF/telegram-changelog.xml";
+    }
+
+    @Override
+    public String getFactoryId() {
+        return TelegramJpaEntityProviderFactory.ID;
+    }
+
+    @Override
+    public void close() {
+
+    }
+}
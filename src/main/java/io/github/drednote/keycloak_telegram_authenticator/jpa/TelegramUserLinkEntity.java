@@ -0,0 +1,60 @@
+package io.github.drednote.keycloak_telegram_authenticator.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.IdClass;
+import jakarta.persistence.NamedQueries;
+import jakarta.persistence.NamedQuery;
+import jakarta.persistence.Table;
+import java.io.Serializable;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * Link between a telegram user and a Keycloak user. The primary key (realm, telegram id) guarantees that a telegram
+ * user has at most one account in a realm.
+ */
+@Entity
+@Table(name = "TELEGRAM_USER_LINK")
+@IdClass(TelegramUserLinkEntity.Key.class)
+@NamedQueries({
+    @NamedQuery(name = "findTelegramUserLinks",
+        query = "select link from TelegramUserLinkEntity link where link.realmId = :realmId "
+                + "and link.telegramId in :telegramIds"),
+    @NamedQuery(name = "deleteTelegramUserLinksByUser",
+        query = "delete from TelegramUserLinkEntity link where link.realmId = :realmId and link.userId = :userId"),
+    @NamedQuery(name = "deleteTelegramUserLinksByRealm",
+        query = "delete from TelegramUserLinkEntity link where link.realmId = :realmId"),
+})
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+public class TelegramUserLinkEntity {
+
+    @Id
+    @Column(name = "REALM_ID", length = 36, nullable = false)
+    private String realmId;
+
+    @Id
+    @Column(name = "TELEGRAM_ID", nullable = false)
+    private Long telegramId;
+
+    @Column(name = "USER_ID", length = 36, nullable = false)
+    private String userId;
+
+    @Getter
+    @Setter
+    @NoArgsConstructor
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    public static class Key implements Serializable {
+
+        private String realmId;
+        private Long telegramId;
+    }
+}
@@ -0,0 +1,104 @@
+package io.github.drednote.keycloak_telegram_authenticator.jpa;
+
+import io.github.drednote.keycloak_telegram_authenticator.Constants;
+import io.github.drednote.keycloak_telegram_authenticator.jpa.TelegramUserLinkEntity.Key;
+import jakarta.persistence.EntityManager;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+/**
+ * Access to {@link TelegramUserLinkEntity} within the transaction of a session.
+ */
+public class TelegramUserLinkStore {
+
+    private final EntityManager em;
+
+    public TelegramUserLinkStore(KeycloakSession session) {
+        this.em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    }
+
+    /**
+     * @return id of the linked user or null
+     */
+    public String findUserId(RealmModel realm, long telegramId) {
+        TelegramUserLinkEntity link = em.find(TelegramUserLinkEntity.class, new Key(realm.getId(), telegramId));
+        return link == null ? null : link.getUserId();
+    }
+
+    /**
+     * Finds links of many telegram users with one query.
+     *
+     * @return user ids by telegram id, only of linked telegram users
+     */
+    public Map<Long, String> findUserIds(RealmModel realm, Collection<Long> telegramIds) {
+        if (telegramIds.isEmpty()) {
+            return Map.of();
+        }
+        Map<Long, String> userIds = new HashMap<>();
+        em.createNamedQuery("findTelegramUserLinks", TelegramUserLinkEntity.class)
+            .setParameter("realmId", realm.getId())
+            .setParameter("telegramIds", telegramIds)
+            .getResultStream()
+            .forEach(link -> userIds.put(link.getTelegramId(), link.getUserId()));
+        return userIds;
+    }
+
+    /**
+     * Finds users created before the link table existed by their {@link Constants#TELEGRAM_ID} attribute, with one
+     * query. Only local users are found, not users of user storage providers.
+     *
+     * @return user ids by telegram id, only of telegram users that have such a user
+     */
+    public Map<Long, String> findUserIdsByAttribute(RealmModel realm, Collection<Long> telegramIds) {
+        if (telegramIds.isEmpty()) {
+            return Map.of();
+        }
+        List<String> values = telegramIds.stream().map(String::valueOf).toList();
+        Map<Long, String> userIds = new HashMap<>();
+        em.createQuery("select a.value, a.user.id from UserAttributeEntity a where a.user.realmId = :realmId "
+                       + "and a.name = :name and a.value in :values", Object[].class)
+            .setParameter("realmId", realm.getId())
+            .setParameter("name", Constants.TELEGRAM_ID)
+            .setParameter("values", values)
+            .getResultStream()
+            .forEach(row -> userIds.putIfAbsent(Long.valueOf((String) row[0]), (String) row[1]));
+        return userIds;
+    }
+
+    /**
+     * Links the user and flushes right away, so a concurrently created link fails here and not on commit.
+     */
+    public void link(RealmModel realm, long telegramId, String userId) {
+        em.persist(new TelegramUserLinkEntity(realm.getId(), telegramId, userId));
+        em.flush();
+    }
+
+    /**
+     * Removes the link and flushes, so the telegram user can be linked again in the same transaction.
+     */
+    public void unlink(RealmModel realm, long telegramId) {
+        TelegramUserLinkEntity link = em.find(TelegramUserLinkEntity.class, new Key(realm.getId(), telegramId));
+        if (link != null) {
+            em.remove(link);
+            em.flush();
+        }
+    }
+
+    public void removeByUser(RealmModel realm, String userId) {
+        em.createNamedQuery("deleteTelegramUserLinksByUser")
+            .setParameter("realmId", realm.getId())
+            .setParameter("userId", userId)
+            .executeUpdate();
+    }
+
+    public void removeByRealm(RealmModel realm) {
+        em.createNamedQuery("deleteTelegramUserLinksByRealm")
+            .setParameter("realmId", realm.getId())
+            .executeUpdate();
+    }
+}
@@ -1,6 +1,8 @@
 package io.github.drednote.keycloak_telegram_authenticator.provider;
 
 import io.github.drednote.keycloak_telegram_authenticator.Constants;
+import io.github.drednote.keycloak_telegram_authenticator.TelegramAuthValidator;
+import io.github.drednote.keycloak_telegram_authenticator.TelegramBots;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -18,6 +20,19 @@ import org.keycloak.services.ui.extend.UiTabProviderFactory;
 public class AttributesUiTabProvider implements UiTabProvider, UiTabProviderFactory<ComponentModel> {
 
     private static final Logger log = Logger.getLogger(AttributesUiTabProvider.class);
+    private static final List<String> REALM_ATTRIBUTES = List.of(
+        Constants.TELEGRAM_BOT_TOKEN,
+        Constants.TELEGRAM_BOT_TOKENS,
+        Constants.TELEGRAM_AUTH_TIME_DELTA,
+        Constants.TELEGRAM_EXCHANGE_CACHE_TTL,
+        Constants.TELEGRAM_VERIFICATION_MODE,
+        Constants.TELEGRAM_BOT_ID,
+        Constants.TELEGRAM_RATE_LIMIT_ADDRESS,
+        Constants.TELEGRAM_RATE_LIMIT_USER,
+        Constants.TELEGRAM_PROFILE_SYNC,
+        Constants.TELEGRAM_EVENT_SAMPLE_RATE,
+        Constants.TELEGRAM_EVENT_AGGREGATION_INTERVAL
+    );
 
     @Override
     public String getId() {
@@ -43,20 +58,50 @@ public class AttributesUiTabProvider implements UiTabProvider, UiTabProviderFact
 
     @Override
     public void onCreate(KeycloakSession session, RealmModel realm, ComponentModel model) {
-        realm.setAttribute(Constants.TELEGRAM_BOT_TOKEN, model.get(Constants.TELEGRAM_BOT_TOKEN));
-        realm.setAttribute(Constants.TELEGRAM_AUTH_TIME_DELTA, model.get(Constants.TELEGRAM_AUTH_TIME_DELTA));
+        copyAttributes(realm, model);
     }
 
     @Override
     public void onUpdate(KeycloakSession session, RealmModel realm, ComponentModel oldModel, ComponentModel model) {
-        realm.setAttribute(Constants.TELEGRAM_BOT_TOKEN, model.get(Constants.TELEGRAM_BOT_TOKEN));
-        realm.setAttribute(Constants.TELEGRAM_AUTH_TIME_DELTA, model.get(Constants.TELEGRAM_AUTH_TIME_DELTA));
+        evictSecretKeys(realm);
+        copyAttributes(realm, model);
     }
 
     @Override
     public void preRemove(KeycloakSession session, RealmModel realm, ComponentModel model) {
-        realm.removeAttribute(Constants.TELEGRAM_BOT_TOKEN);
-        realm.removeAttribute(Constants.TELEGRAM_AUTH_TIME_DELTA);
+        evictSecretKeys(realm);
+        REALM_ATTRIBUTES.forEach(realm::removeAttribute);
+    }
+
+    private static void evictSecretKeys(RealmModel realm) {
+        TelegramAuthValidator.evictSecretKey(realm.getAttribute(Constants.TELEGRAM_BOT_TOKEN));
+        String tokens = realm.getAttribute(Constants.TELEGRAM_BOT_TOKENS);
+        TelegramBots.evict(tokens);
+        if (tokens != null) {
+            for (String token : tokens.split(TelegramBots.DELIMITER)) {
+                TelegramAuthValidator.evictSecretKey(token.trim());
+            }
+        }
+    }
+
+    private static void copyAttributes(RealmModel realm, ComponentModel model) {
+        for (String attribute : REALM_ATTRIBUTES) {
+            String value = Constants.TELEGRAM_BOT_TOKENS.equals(attribute)
+                ? joinValues(model.getConfig().get(attribute))
+                : model.get(attribute);
+            if (value == null) {
+                realm.removeAttribute(attribute);
+            } else {
+                realm.setAttribute(attribute, value);
+            }
+        }
+    }
+
+    private static String joinValues(List<String> values) {
+        if (values == null || values.isEmpty()) {
+            return null;
+        }
+        return String.join(TelegramBots.DELIMITER, values);
     }
 
     @Override
@@ -67,7 +112,17 @@ public class AttributesUiTabProvider implements UiTabProvider, UiTabProviderFact
             .label("Set a Telegram Bot Token")
             .helpText("This token will be used for verified init_data from telegram")
             .type(ProviderConfigProperty.STRING_TYPE)
-            .required(true)
+            .required(false)
+            .secret(true)
+            .add()
+
+            .property()
+            .name(Constants.TELEGRAM_BOT_TOKENS)
+            .label("Set additional Telegram Bot Tokens")
+            .helpText("Tokens of other bots of this realm. A request selects its bot with the bot_id parameter "
+                      + "or the telegram_bot_id client attribute")
+            .type(ProviderConfigProperty.MULTIVALUED_STRING_TYPE)
+            .required(false)
             .secret(true)
             .add()
 
@@ -79,6 +134,80 @@ public class AttributesUiTabProvider implements UiTabProvider, UiTabProviderFact
                       + "If empty, no verify will be")
             .type(ProviderConfigProperty.STRING_TYPE)
             .add()
+
+            .property()
+            .name(Constants.TELEGRAM_EXCHANGE_CACHE_TTL)
+            .label("Set a Telegram Exchange Cache TTL (in seconds)")
+            .required(false)
+            .helpText("Repeated exchange of the same init_data within this time returns already issued tokens. "
+                      + "Never longer than the Telegram Auth Time Delta. If empty, responses are not cached")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .add()
+
+            .property()
+            .name(Constants.TELEGRAM_VERIFICATION_MODE)
+            .label("Set a Telegram Verification Mode")
+            .required(false)
+            .helpText("hmac verifies the hash field with the bot token. ed25519 verifies the signature field with "
+                      + "Telegram public key and needs only the bot id")
+            .type(ProviderConfigProperty.LIST_TYPE)
+            .options(VerificationMode.HMAC.value(), VerificationMode.ED25519.value())
+            .defaultValue(VerificationMode.HMAC.value())
+            .add()
+
+            .property()
+            .name(Constants.TELEGRAM_BOT_ID)
+            .label("Set a Telegram Bot Id")
+            .required(false)
+            .helpText("Id of the bot for ed25519 verification mode. If empty, the id of the bot token is used")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .add()
+
+            .property()
+            .name(Constants.TELEGRAM_RATE_LIMIT_ADDRESS)
+            .label("Set a Telegram Rate Limit per Address (requests per minute)")
+            .required(false)
+            .helpText("Exchanges allowed from one remote address per minute on every node. If empty, not limited")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .add()
+
+            .property()
+            .name(Constants.TELEGRAM_RATE_LIMIT_USER)
+            .label("Set a Telegram Rate Limit per User (requests per minute)")
+            .required(false)
+            .helpText("Exchanges allowed for one telegram_id per minute on every node. If empty, not limited")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .add()
+
+            .property()
+            .name(Constants.TELEGRAM_PROFILE_SYNC)
+            .label("Set a Telegram Profile Sync Mode")
+            .required(false)
+            .helpText("inline writes names and telegram_* attributes of the user during the exchange. async writes "
+                      + "only telegram_id during the exchange and the rest shortly after it in background")
+            .type(ProviderConfigProperty.LIST_TYPE)
+            .options(ProfileSyncMode.INLINE.value(), ProfileSyncMode.ASYNC.value())
+            .defaultValue(ProfileSyncMode.INLINE.value())
+            .add()
+
+            .property()
+            .name(Constants.TELEGRAM_EVENT_SAMPLE_RATE)
+            .label("Set a Telegram Success Event Sample Rate (0 to 1)")
+            .required(false)
+            .helpText("Fraction of successful telegram exchanges recorded as events, e.g. 0.01. Errors are always "
+                      + "recorded. If empty, all successes are recorded, or none if they are aggregated")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .add()
+
+            .property()
+            .name(Constants.TELEGRAM_EVENT_AGGREGATION_INTERVAL)
+            .label("Set a Telegram Success Event Aggregation Interval (in seconds)")
+            .required(false)
+            .helpText("If set, every node also records one event per client and interval with the number of "
+                      + "successful telegram exchanges. Unless a sample rate is set, successes are then recorded only "
+                      + "in aggregate. If empty, successes are not aggregated")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .add()
         ;
         return builder.build();
     }
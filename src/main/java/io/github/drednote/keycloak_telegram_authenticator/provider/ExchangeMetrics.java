@@ -0,0 +1,109 @@
+package io.github.drednote.keycloak_telegram_authenticator.provider;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.RealmModel;
+
+/**
+ * Timers of exchange phases and counters of outcomes, tagged by realm and client.
+ * <p>
+ * Meters are registered once per realm and client and kept in arrays indexed by {@link Phase} and {@link Outcome}, so
+ * a request only does one map lookup and then records raw nanos without building tags.
+ */
+public final class ExchangeMetrics {
+
+    private static final String PHASE_TIMER = "telegram.exchange.phase";
+    private static final String OUTCOME_COUNTER = "telegram.exchange.outcome";
+
+    private final MeterRegistry registry;
+    private final Map<Key, Meters> meters = new ConcurrentHashMap<>();
+
+    public ExchangeMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    public Meters of(RealmModel realm, ClientModel client) {
+        return meters.computeIfAbsent(new Key(realm.getName(), client.getClientId()), this::register);
+    }
+
+    private Meters register(Key key) {
+        Phase[] phases = Phase.values();
+        Timer[] timers = new Timer[phases.length];
+        for (Phase phase : phases) {
+            timers[phase.ordinal()] = Timer.builder(PHASE_TIMER)
+                .description("Time spent in a phase of telegram token exchange")
+                .tag("phase", phase.tag)
+                .tag("realm", key.realm)
+                .tag("client", key.client)
+                .register(registry);
+        }
+        Outcome[] outcomes = Outcome.values();
+        Counter[] counters = new Counter[outcomes.length];
+        for (Outcome outcome : outcomes) {
+            counters[outcome.ordinal()] = Counter.builder(OUTCOME_COUNTER)
+                .description("Outcomes of telegram token exchange")
+                .tag("outcome", outcome.tag)
+                .tag("realm", key.realm)
+                .tag("client", key.client)
+                .register(registry);
+        }
+        return new Meters(timers, counters);
+    }
+
+    public enum Phase {
+        PARSE,
+        VERIFY,
+        LOOKUP,
+        CREATE,
+        SESSION,
+        TOKEN;
+
+        private final String tag = name().toLowerCase(Locale.ROOT);
+    }
+
+    public enum Outcome {
+        HASH_INVALID,
+        DATE_EXPIRED,
+        REGISTRATION_BLOCKED,
+        NEW_USER,
+        RETURNING_USER;
+
+        private final String tag = name().toLowerCase(Locale.ROOT);
+    }
+
+    public static final class Meters {
+
+        private final Timer[] timers;
+        private final Counter[] counters;
+
+        private Meters(Timer[] timers, Counter[] counters) {
+            this.timers = timers;
+            this.counters = counters;
+        }
+
+        /**
+         * @return start of a phase to pass to {@link #record(Phase, long)}
+         */
+        public long start() {
+            return System.nanoTime();
+        }
+
+        public void record(Phase phase, long start) {
+            timers[phase.ordinal()].record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+
+        public void count(Outcome outcome) {
+            counters[outcome.ordinal()].increment();
+        }
+    }
+
+    private record Key(String realm, String client) {
+
+    }
+}
@@ -0,0 +1,86 @@
+package io.github.drednote.keycloak_telegram_authenticator.provider;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.representations.AccessTokenResponse;
+
+/**
+ * Node local cache of issued responses, so a client resending the same {@code init_data} gets the same tokens
+ * without a new validation, user lookup and session.
+ * <p>
+ * The key is a SHA-256 of the whole {@code init_data} together with realm, client, audience and scope, so a payload
+ * that differs in any byte never hits an entry. Entries are evicted in LRU order once the total weight (approximate
+ * size in bytes) reaches the limit.
+ */
+public class ExchangeResponseCache {
+
+    private static final int ENTRY_OVERHEAD = 512;
+
+    private final Cache<String, Entry> cache;
+
+    /**
+     * @param maxBytes      approximate memory limit of all entries
+     * @param maxTtlSeconds upper bound of ttl of any entry, whatever realm says
+     */
+    public ExchangeResponseCache(long maxBytes, long maxTtlSeconds) {
+        this.cache = CacheBuilder.newBuilder()
+            .maximumWeight(maxBytes)
+            .weigher((String key, Entry entry) -> entry.weight())
+            .expireAfterWrite(maxTtlSeconds, TimeUnit.SECONDS)
+            .build();
+    }
+
+    public static String key(RealmModel realm, ClientModel client, String initData, String audience, String scope) {
+        Hasher hasher = Hashing.sha256().newHasher();
+        putString(hasher, realm.getId());
+        putString(hasher, client.getId());
+        putString(hasher, audience);
+        putString(hasher, scope);
+        putString(hasher, initData);
+        return hasher.hash().toString();
+    }
+
+    public Entry get(String key) {
+        Entry entry = cache.getIfPresent(key);
+        if (entry != null && entry.expiresAt() <= System.currentTimeMillis()) {
+            cache.invalidate(key);
+            return null;
+        }
+        return entry;
+    }
+
+    public void put(String key, Entry entry) {
+        if (entry.expiresAt() > System.currentTimeMillis()) {
+            cache.put(key, entry);
+        }
+    }
+
+    private static void putString(Hasher hasher, String value) {
+        if (value == null) {
+            hasher.putInt(-1);
+        } else {
+            hasher.putInt(value.length()).putString(value, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * @param expiresAt epoch millis after which the entry must not be returned
+     */
+    public record Entry(AccessTokenResponse response, String userId, long expiresAt) {
+
+        int weight() {
+            return ENTRY_OVERHEAD + length(response.getToken()) + length(response.getRefreshToken())
+                   + length(response.getIdToken());
+        }
+
+        private static int length(String value) {
+            return value == null ? 0 : value.length() * 2;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package io.github.drednote.keycloak_telegram_authenticator.provider;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Node local set of {@code init_data} that recently failed verification, so a resent forged payload is rejected
+ * before parsing and HMAC.
+ * <p>
+ * A payload is remembered together with the verification mode and bot it failed with, so the same payload sent again
+ * for the right bot is verified.
+ * <p>
+ * The key is a 128-bit murmur3 of the whole {@code init_data}, seeded randomly on every start, so it is much cheaper
+ * than the HMAC it saves, and a valid payload can't be blocked by a crafted colliding one.
+ */
+public class FailedInitDataCache {
+
+    private final HashFunction hashFunction = Hashing.murmur3_128(new SecureRandom().nextInt());
+    private final Cache<HashCode, Boolean> cache;
+
+    public FailedInitDataCache(long maxSize, long ttlSeconds) {
+        this.cache = CacheBuilder.newBuilder()
+            .maximumSize(maxSize)
+            .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+            .build();
+    }
+
+    /**
+     * @param verification verification mode and bot the payload is checked against
+     */
+    public boolean contains(String realmId, String verification, String initData) {
+        return cache.getIfPresent(key(realmId, verification, initData)) != null;
+    }
+
+    public void put(String realmId, String verification, String initData) {
+        cache.put(key(realmId, verification, initData), Boolean.TRUE);
+    }
+
+    private HashCode key(String realmId, String verification, String initData) {
+        return hashFunction.newHasher()
+            .putString(realmId, StandardCharsets.UTF_8)
+            .putByte((byte) 0)
+            .putString(verification, StandardCharsets.UTF_8)
+            .putByte((byte) 0)
+            .putString(initData, StandardCharsets.UTF_8)
+            .hash();
+    }
+}
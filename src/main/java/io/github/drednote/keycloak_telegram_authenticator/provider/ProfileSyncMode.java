@@ -0,0 +1,37 @@
+package io.github.drednote.keycloak_telegram_authenticator.provider;
+
+import io.github.drednote.keycloak_telegram_authenticator.Constants;
+import java.util.Locale;
+import org.keycloak.models.RealmModel;
+
+/**
+ * When telegram fields of a user are written. Set per realm with the {@link Constants#TELEGRAM_PROFILE_SYNC} realm
+ * attribute.
+ */
+public enum ProfileSyncMode {
+
+    /**
+     * All fields are written during the exchange
+     */
+    INLINE,
+    /**
+     * Only {@code telegram_id} is written during the exchange, the rest by {@link ProfileSyncQueue}
+     */
+    ASYNC;
+
+    public static ProfileSyncMode of(RealmModel realm) {
+        String mode = realm.getAttribute(Constants.TELEGRAM_PROFILE_SYNC);
+        if (mode == null || mode.isBlank()) {
+            return INLINE;
+        }
+        try {
+            return valueOf(mode.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown " + Constants.TELEGRAM_PROFILE_SYNC + ": " + mode, e);
+        }
+    }
+
+    public String value() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,133 @@
+package io.github.drednote.keycloak_telegram_authenticator.provider;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Node local queue of {@link TelegramUserProfile} writes made after the exchange, see {@link ProfileSyncMode#ASYNC}.
+ * <p>
+ * A user is queued at most once: a newer profile of an already queued user replaces the older one. The queue holds at
+ * most {@code capacity} users, profiles of other users are dropped when it is full and are written by a later login.
+ * Each user is written in its own transaction on a virtual thread, at most {@code concurrency} at a time, so the
+ * writes don't take all database connections.
+ */
+public class ProfileSyncQueue {
+
+    private static final Logger log = Logger.getLogger(ProfileSyncQueue.class);
+
+    private final Map<Key, TelegramUserProfile> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final ExecutorService executor =
+        Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("telegram-profile-sync-", 0).factory());
+    private final int capacity;
+    private final Semaphore writers;
+    private final Counter written;
+    private final Counter coalesced;
+    private final Counter dropped;
+    private final Counter failed;
+
+    public ProfileSyncQueue(int capacity, int concurrency, MeterRegistry registry) {
+        this.capacity = capacity;
+        this.writers = new Semaphore(concurrency);
+        Gauge.builder("telegram.profile.sync.queue", depth, AtomicInteger::get)
+            .description("Users waiting for their telegram profile to be written")
+            .register(registry);
+        this.written = counter(registry, "written");
+        this.coalesced = counter(registry, "coalesced");
+        this.dropped = counter(registry, "dropped");
+        this.failed = counter(registry, "failed");
+    }
+
+    /**
+     * Queues the profile of the user. Never blocks.
+     */
+    public void submit(KeycloakSessionFactory sessionFactory, String realmId, String userId,
+        TelegramUserProfile profile) {
+        Key key = new Key(realmId, userId);
+        while (true) {
+            if (pending.computeIfPresent(key, (k, queued) -> profile) != null) {
+                coalesced.increment();
+                return;
+            }
+            if (depth.incrementAndGet() > capacity) {
+                depth.decrementAndGet();
+                dropped.increment();
+                return;
+            }
+            if (pending.putIfAbsent(key, profile) == null) {
+                executor.execute(() -> write(sessionFactory, key));
+                return;
+            }
+            // queued by a parallel login meanwhile, replace its profile
+            depth.decrementAndGet();
+        }
+    }
+
+    private void write(KeycloakSessionFactory sessionFactory, Key key) {
+        try {
+            writers.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pending.remove(key);
+            depth.decrementAndGet();
+            dropped.increment();
+            return;
+        }
+        try {
+            // taken only now, so profiles submitted while waiting for a writer are coalesced
+            TelegramUserProfile profile = pending.remove(key);
+            depth.decrementAndGet();
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                RealmModel realm = session.realms().getRealm(key.realmId());
+                UserModel userModel = realm == null ? null : session.users().getUserById(realm, key.userId());
+                if (userModel != null) {
+                    profile.applyTo(userModel);
+                }
+            });
+            written.increment();
+        } catch (RuntimeException e) {
+            failed.increment();
+            log.warnf(e, "Failed to write telegram profile of user %s", key.userId());
+        } finally {
+            writers.release();
+        }
+    }
+
+    /**
+     * Waits a little for queued profiles to be written.
+     */
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                log.warnf("%d telegram profiles were not written on shutdown", depth.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Counter counter(MeterRegistry registry, String result) {
+        return Counter.builder("telegram.profile.sync")
+            .description("Telegram profile writes by result")
+            .tag("result", result)
+            .register(registry);
+    }
+
+    private record Key(String realmId, String userId) {
+
+    }
+}
@@ -0,0 +1,107 @@
+package io.github.drednote.keycloak_telegram_authenticator.provider;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Striped;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Node local token buckets, refilled continuously at {@code limit} tokens per minute and holding at most {@code limit}
+ * tokens.
+ * <p>
+ * A bucket is updated under one of a fixed set of locks chosen by its key, so requests of different keys rarely wait
+ * for each other. A bucket not used for a minute is full again, so it is simply evicted and created on next use.
+ */
+public class RateLimiter {
+
+    private static final int STRIPES = 64;
+    private static final long PERIOD_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final Striped<Lock> locks = Striped.lock(STRIPES);
+    private final Ticker ticker;
+    private final Cache<String, Bucket> buckets;
+
+    /**
+     * @param maxKeys maximum number of buckets kept, least recently used are dropped first
+     */
+    public RateLimiter(long maxKeys) {
+        this(maxKeys, Ticker.systemTicker());
+    }
+
+    /**
+     * @param ticker source of nanosecond time of both refill and eviction
+     */
+    RateLimiter(long maxKeys, Ticker ticker) {
+        this.ticker = ticker;
+        this.buckets = CacheBuilder.newBuilder()
+            .maximumSize(maxKeys)
+            .expireAfterAccess(PERIOD_NANOS, TimeUnit.NANOSECONDS)
+            .ticker(ticker)
+            .build();
+    }
+
+    /**
+     * Takes a token from the bucket of the key.
+     *
+     * @param limit tokens per minute
+     * @return false if the bucket is empty
+     */
+    public boolean tryAcquire(String key, int limit) {
+        return update(key, limit, true);
+    }
+
+    /**
+     * Same as {@link #tryAcquire(String, int)}, but doesn't take the token.
+     */
+    public boolean hasCapacity(String key, int limit) {
+        return update(key, limit, false);
+    }
+
+    private boolean update(String key, int limit, boolean acquire) {
+        long now = ticker.read();
+        Lock lock = locks.get(key);
+        lock.lock();
+        try {
+            Bucket bucket = buckets.getIfPresent(key);
+            if (bucket == null) {
+                if (!acquire) {
+                    return limit > 0;
+                }
+                bucket = new Bucket(limit, now);
+                buckets.put(key, bucket);
+            } else {
+                bucket.refill(limit, now);
+            }
+            if (bucket.tokens < 1) {
+                return false;
+            }
+            if (acquire) {
+                bucket.tokens--;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Guarded by the lock of its key.
+     */
+    private static final class Bucket {
+
+        private double tokens;
+        private long refilledAt;
+
+        private Bucket(int limit, long now) {
+            this.tokens = limit;
+            this.refilledAt = now;
+        }
+
+        private void refill(int limit, long now) {
+            tokens = Math.min(limit, tokens + (double) (now - refilledAt) * limit / PERIOD_NANOS);
+            refilledAt = now;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package io.github.drednote.keycloak_telegram_authenticator.provider;
+
+import io.github.drednote.keycloak_telegram_authenticator.Constants;
+import java.util.Locale;
+import org.keycloak.models.ClientModel;
+
+/**
+ * How a user session is obtained for an exchange. Set per client with the
+ * {@link Constants#TELEGRAM_SESSION_MODE} client attribute.
+ */
+public enum SessionMode {
+
+    /**
+     * A new persistent session for every exchange
+     */
+    PERSISTENT,
+    /**
+     * Still valid session created by a previous exchange of the same telegram user and client, or a new persistent
+     * one if there is none
+     */
+    REUSE,
+    /**
+     * Session that only lives during the request and is never stored. No refresh token is issued.
+     */
+    TRANSIENT;
+
+    public static SessionMode of(ClientModel client) {
+        String mode = client.getAttribute(Constants.TELEGRAM_SESSION_MODE);
+        if (mode == null || mode.isBlank()) {
+            return PERSISTENT;
+        }
+        try {
+            return valueOf(mode.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown " + Constants.TELEGRAM_SESSION_MODE + ": " + mode, e);
+        }
+    }
+}
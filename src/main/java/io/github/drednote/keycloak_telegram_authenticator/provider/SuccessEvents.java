@@ -0,0 +1,149 @@
+package io.github.drednote.keycloak_telegram_authenticator.provider;
+
+import io.github.drednote.keycloak_telegram_authenticator.Constants;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.jboss.logging.Logger;
+import org.keycloak.events.EventBuilder;
+import org.keycloak.events.EventType;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Success events of telegram exchanges, sampled and aggregated per realm, see
+ * {@link Constants#TELEGRAM_EVENT_SAMPLE_RATE} and {@link Constants#TELEGRAM_EVENT_AGGREGATION_INTERVAL}. Errors are
+ * not affected, they are always recorded.
+ * <p>
+ * Aggregated successes are counted per realm, client and event type on this node. When the interval of a window is
+ * over, one success event without a user is recorded for it, with {@link #AGGREGATED_COUNT} and
+ * {@link #AGGREGATION_INTERVAL} details. Counts of a window that is not over yet are lost on shutdown.
+ */
+public class SuccessEvents {
+
+    public static final String SAMPLE_RATE = "telegram_sample_rate";
+    public static final String AGGREGATED_COUNT = "telegram_aggregated_count";
+    public static final String AGGREGATION_INTERVAL = "telegram_aggregation_interval";
+
+    private static final Logger log = Logger.getLogger(SuccessEvents.class);
+    private static final long FLUSH_PERIOD_SECONDS = 5;
+
+    private final Map<Key, Window> windows = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher =
+        Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("telegram-events-flush").factory());
+
+    /**
+     * Starts recording aggregated events with sessions of the factory.
+     */
+    public void start(KeycloakSessionFactory sessionFactory) {
+        flusher.scheduleWithFixedDelay(() -> flush(sessionFactory), FLUSH_PERIOD_SECONDS, FLUSH_PERIOD_SECONDS,
+            TimeUnit.SECONDS);
+    }
+
+    /**
+     * Records the success of the event, or only counts it, depending on the realm configuration.
+     */
+    public void success(EventBuilder event, RealmModel realm, ClientModel client) {
+        int interval = TelegramExchangeService.getIntAttribute(realm, Constants.TELEGRAM_EVENT_AGGREGATION_INTERVAL);
+        if (interval > 0) {
+            Key key = new Key(realm.getId(), client.getClientId(), event.getEvent().getType());
+            windows.compute(key, (k, window) -> {
+                Window counted = window == null ? new Window(interval) : window;
+                counted.count++;
+                return counted;
+            });
+        }
+
+        // the aggregate already counts every success, so individual ones are recorded only if asked for
+        double sampleRate = getSampleRate(realm, interval > 0 ? 0 : 1);
+        if (sampleRate >= 1) {
+            event.success();
+        } else if (sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate) {
+            event.detail(SAMPLE_RATE, Double.toString(sampleRate)).success();
+        }
+    }
+
+    public void close() {
+        flusher.shutdownNow();
+    }
+
+    private void flush(KeycloakSessionFactory sessionFactory) {
+        long now = System.nanoTime();
+        List<Map.Entry<Key, Window>> due = new ArrayList<>();
+        for (Key key : windows.keySet()) {
+            // removed under the lock of the key, so no success is counted into a window after it is taken
+            windows.computeIfPresent(key, (k, window) -> {
+                if (now - window.startedAt < TimeUnit.SECONDS.toNanos(window.interval)) {
+                    return window;
+                }
+                due.add(Map.entry(k, window));
+                return null;
+            });
+        }
+        if (due.isEmpty()) {
+            return;
+        }
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                for (Map.Entry<Key, Window> entry : due) {
+                    Key key = entry.getKey();
+                    RealmModel realm = session.realms().getRealm(key.realmId());
+                    if (realm == null) {
+                        continue;
+                    }
+                    new EventBuilder(realm, session)
+                        .event(key.type())
+                        .client(key.clientId())
+                        .detail(AGGREGATED_COUNT, Long.toString(entry.getValue().count))
+                        .detail(AGGREGATION_INTERVAL, Integer.toString(entry.getValue().interval))
+                        .success();
+                }
+            });
+        } catch (RuntimeException e) {
+            log.warnf(e, "Failed to record %d aggregated telegram events", due.size());
+        }
+    }
+
+    /**
+     * @param defaultRate rate if not configured
+     * @return fraction of success events recorded one by one
+     */
+    private static double getSampleRate(RealmModel realm, double defaultRate) {
+        String value = realm.getAttribute(Constants.TELEGRAM_EVENT_SAMPLE_RATE);
+        if (value == null || value.isBlank()) {
+            return defaultRate;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            log.warnf("Realm attribute %s must be a number, but was '%s'",
+                Constants.TELEGRAM_EVENT_SAMPLE_RATE, value);
+            return defaultRate;
+        }
+    }
+
+    private record Key(String realmId, String clientId, EventType type) {
+
+    }
+
+    /**
+     * Guarded by the lock of its key in {@link #windows}.
+     */
+    private static final class Window {
+
+        private final long startedAt = System.nanoTime();
+        private final int interval;
+        private long count;
+
+        private Window(int interval) {
+            this.interval = interval;
+        }
+    }
+}
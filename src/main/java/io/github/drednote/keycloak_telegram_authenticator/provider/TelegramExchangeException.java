@@ -0,0 +1,33 @@
+package io.github.drednote.keycloak_telegram_authenticator.provider;
+
+import jakarta.ws.rs.core.Response.Status;
+
+/**
+ * Rejected exchange. The endpoint records {@link #getEventError()} with the message as
+ * {@link org.keycloak.events.Details#REASON} and responds with {@link #getError()} and the message.
+ */
+public class TelegramExchangeException extends RuntimeException {
+
+    private final String eventError;
+    private final String error;
+    private final Status status;
+
+    public TelegramExchangeException(String eventError, String error, String description, Status status) {
+        super(description);
+        this.eventError = eventError;
+        this.error = error;
+        this.status = status;
+    }
+
+    public String getEventError() {
+        return eventError;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+}
@@ -0,0 +1,99 @@
+package io.github.drednote.keycloak_telegram_authenticator.provider;
+
+import io.github.drednote.keycloak_telegram_authenticator.InitData;
+import io.github.drednote.keycloak_telegram_authenticator.TelegramAuthValidator;
+import io.github.drednote.keycloak_telegram_authenticator.TelegramUser;
+import jakarta.ws.rs.core.MultivaluedMap;
+import org.keycloak.models.KeycloakSession;
+
+/**
+ * Telegram parameters of a token request. The one of the current request is stored as a {@link KeycloakSession}
+ * attribute, so form parameters are read once for {@code supports()} and {@code exchange()}, and init_data is parsed at
+ * most once.
+ * <p>
+ * Not thread safe, a request is handled by one thread.
+ */
+public final class TelegramExchangeRequest {
+
+    public static final String INIT_DATA = "init_data";
+    public static final String BOT_ID = "bot_id";
+
+    private static final String ATTRIBUTE = TelegramExchangeRequest.class.getName();
+
+    private final String initData;
+    private final String botId;
+
+    private InitData data;
+    private TelegramUser user;
+    private RuntimeException parseError;
+
+    private TelegramExchangeRequest(String initData, String botId) {
+        this.initData = initData;
+        this.botId = botId;
+    }
+
+    public static TelegramExchangeRequest of(KeycloakSession session) {
+        TelegramExchangeRequest request = session.getAttribute(ATTRIBUTE, TelegramExchangeRequest.class);
+        if (request == null) {
+            MultivaluedMap<String, String> formParameters =
+                session.getContext().getHttpRequest().getDecodedFormParameters();
+            request = new TelegramExchangeRequest(formParameters.getFirst(INIT_DATA), formParameters.getFirst(BOT_ID));
+            session.setAttribute(ATTRIBUTE, request);
+        }
+        return request;
+    }
+
+    /**
+     * @return request not bound to a session, e.g. one item of a batch
+     */
+    public static TelegramExchangeRequest of(String initData, String botId) {
+        return new TelegramExchangeRequest(initData, botId);
+    }
+
+    /**
+     * @return raw init_data or null if the request has none
+     */
+    public String initData() {
+        return initData;
+    }
+
+    /**
+     * @return {@code bot_id} form parameter, not trusted
+     */
+    public String botId() {
+        return botId;
+    }
+
+    /**
+     * @throws IllegalArgumentException if init_data can't be parsed, the same one on every call
+     */
+    public InitData data() {
+        parse();
+        return data;
+    }
+
+    /**
+     * @throws IllegalArgumentException if init_data or its user can't be parsed, the same one on every call
+     */
+    public TelegramUser user() {
+        parse();
+        return user;
+    }
+
+    private void parse() {
+        if (parseError != null) {
+            throw parseError;
+        }
+        if (data != null) {
+            return;
+        }
+        try {
+            InitData parsed = InitData.parse(initData);
+            user = TelegramAuthValidator.parseUser(parsed);
+            data = parsed;
+        } catch (RuntimeException e) {
+            parseError = e instanceof IllegalArgumentException ? e : new IllegalArgumentException(e);
+            throw parseError;
+        }
+    }
+}
@@ -0,0 +1,809 @@
+package io.github.drednote.keycloak_telegram_authenticator.provider;
+
+import io.github.drednote.keycloak_telegram_authenticator.Constants;
+import io.github.drednote.keycloak_telegram_authenticator.InitData;
+import io.github.drednote.keycloak_telegram_authenticator.InitDataVerifier;
+import io.github.drednote.keycloak_telegram_authenticator.TelegramAuthValidator;
+import io.github.drednote.keycloak_telegram_authenticator.TelegramAuthValidator.AuthParams;
+import io.github.drednote.keycloak_telegram_authenticator.TelegramAuthValidator.AuthResponse;
+import io.github.drednote.keycloak_telegram_authenticator.TelegramBots;
+import io.github.drednote.keycloak_telegram_authenticator.TelegramPublicKeys;
+import io.github.drednote.keycloak_telegram_authenticator.TelegramSecretKey;
+import io.github.drednote.keycloak_telegram_authenticator.TelegramUser;
+import io.github.drednote.keycloak_telegram_authenticator.jpa.TelegramUserLinkStore;
+import io.github.drednote.keycloak_telegram_authenticator.provider.ExchangeMetrics.Meters;
+import io.github.drednote.keycloak_telegram_authenticator.provider.ExchangeMetrics.Outcome;
+import io.github.drednote.keycloak_telegram_authenticator.provider.ExchangeMetrics.Phase;
+import jakarta.persistence.PersistenceException;
+import jakarta.ws.rs.core.Response.Status;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.jboss.logging.Logger;
+import org.keycloak.OAuthErrorException;
+import org.keycloak.common.util.Time;
+import org.keycloak.events.Details;
+import org.keycloak.events.Errors;
+import org.keycloak.events.EventBuilder;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.ClientSessionContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ModelDuplicateException;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.models.UserSessionModel.SessionPersistenceState;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.protocol.oidc.OIDCLoginProtocol;
+import org.keycloak.protocol.oidc.TokenManager;
+import org.keycloak.protocol.oidc.TokenManager.AccessTokenResponseBuilder;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.representations.AccessTokenResponse;
+import org.keycloak.services.Urls;
+import org.keycloak.services.managers.AuthenticationManager;
+import org.keycloak.services.managers.AuthenticationSessionManager;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.keycloak.sessions.RootAuthenticationSessionModel;
+
+/**
+ * Exchange of init_data for tokens, shared by the token exchange provider and the telegram realm endpoints. Created
+ * once by {@link TelegramTokenExchangeProviderFactory}.
+ * <p>
+ * Rejections are thrown as {@link TelegramExchangeException}, each endpoint turns them into its own response.
+ */
+public class TelegramExchangeService {
+
+    private static final Logger log = Logger.getLogger(TelegramExchangeService.class);
+    private static final String TOO_MANY_REQUESTS = "too_many_requests";
+    private static final String INVALID_ATTRIBUTE = "invalid_attribute";
+    private static final long CREATION_WAIT_SECONDS = 10;
+    private static final int CREATION_ATTEMPTS = 3;
+
+    private final TelegramUserIdCache userIdCache;
+    private final TelegramPublicKeys publicKeys;
+    private final ExchangeMetrics metrics;
+    private final RateLimiter rateLimiter;
+    private final FailedInitDataCache failedInitData;
+    private final ProfileSyncQueue profileSyncQueue;
+    private final SuccessEvents successEvents;
+    private final Map<String, CompletableFuture<Void>> creations = new ConcurrentHashMap<>();
+
+    public TelegramExchangeService(
+        TelegramUserIdCache userIdCache, TelegramPublicKeys publicKeys, ExchangeMetrics metrics,
+        RateLimiter rateLimiter, FailedInitDataCache failedInitData, ProfileSyncQueue profileSyncQueue,
+        SuccessEvents successEvents
+    ) {
+        this.userIdCache = userIdCache;
+        this.publicKeys = publicKeys;
+        this.metrics = metrics;
+        this.rateLimiter = rateLimiter;
+        this.failedInitData = failedInitData;
+        this.profileSyncQueue = profileSyncQueue;
+        this.successEvents = successEvents;
+    }
+
+    public Meters meters(RealmModel realm, ClientModel client) {
+        return metrics.of(realm, client);
+    }
+
+    /**
+     * Records the success of an exchange as configured for the realm, instead of {@link EventBuilder#success()}.
+     */
+    public void success(EventBuilder event, RealmModel realm, ClientModel client) {
+        successEvents.success(event, realm, client);
+    }
+
+    /**
+     * Takes a token of the {@link Constants#TELEGRAM_RATE_LIMIT_ADDRESS} limit.
+     */
+    public void checkAddress(RealmModel realm, String remoteAddress) {
+        int addressLimit = getIntAttribute(realm, Constants.TELEGRAM_RATE_LIMIT_ADDRESS);
+        if (addressLimit > 0 && !rateLimiter.tryAcquire(realm.getId() + ":address:" + remoteAddress, addressLimit)) {
+            throw tooManyRequests("Too many requests from the address");
+        }
+    }
+
+    /**
+     * Reads the realm and client configuration needed by {@link #validate(Settings, TelegramExchangeRequest, Meters)}
+     * once, so a batch is validated without touching the models.
+     *
+     * @param botId {@code bot_id} form parameter, may be null
+     */
+    public Settings settings(RealmModel realm, ClientModel client, String botId) {
+        VerificationMode mode = getVerificationMode(realm);
+        InitDataVerifier verifier;
+        String verification;
+        if (mode == VerificationMode.ED25519) {
+            long trustedBotId = getTrustedBotId(realm, client, botId);
+            verifier = publicKeys.forBot(trustedBotId);
+            verification = mode.value() + ":" + trustedBotId;
+        } else {
+            verifier = getSecretKey(realm, client, botId);
+            String selectedBotId = botId == null ? client.getAttribute(Constants.TELEGRAM_BOT_ID) : botId;
+            verification = mode.value() + ":" + (selectedBotId == null ? "" : selectedBotId.trim());
+        }
+        return new Settings(realm.getId(), verifier, verification,
+            getIntAttribute(realm, Constants.TELEGRAM_AUTH_TIME_DELTA),
+            getIntAttribute(realm, Constants.TELEGRAM_RATE_LIMIT_USER));
+    }
+
+    /**
+     * Checks go from the cheapest to the most expensive: known failed payload, structure and date of init_data,
+     * rate limit, and only then the hash or signature.
+     * <p>
+     * Doesn't use the Keycloak session, so requests of a batch may be validated in parallel.
+     */
+    public AuthResponse validate(Settings settings, TelegramExchangeRequest request, Meters meters) {
+        String initData = request.initData();
+        InitDataVerifier verifier = settings.verifier();
+        int authDelta = settings.authDelta();
+
+        if (failedInitData.contains(settings.realmId(), settings.verification(), initData)) {
+            meters.count(Outcome.HASH_INVALID);
+            throw accessDenied("Failed to verify init_data");
+        }
+
+        InitData data;
+        TelegramUser user;
+        boolean fresh;
+        try {
+            long start = meters.start();
+            data = request.data();
+            user = request.user();
+            meters.record(Phase.PARSE, start);
+            if (!data.contains(verifier.proofField())) {
+                throw new IllegalArgumentException(verifier.proofField() + " is null");
+            }
+            fresh = authDelta <= 0 || TelegramAuthValidator.checkAuthDate(data, authDelta);
+        } catch (Exception e) {
+            throw unableToParse(e);
+        }
+        if (!fresh) {
+            // stale replay, don't spend HMAC on it
+            throw dateExpired(meters);
+        }
+
+        // telegram_id is not verified yet, so only check the limit here and take a token after verification:
+        // forged payloads must not exhaust the limit of a real user
+        int userLimit = settings.userLimit();
+        String userLimitKey = settings.realmId() + ":user:" + user.getId();
+        if (userLimit > 0 && !rateLimiter.hasCapacity(userLimitKey, userLimit)) {
+            throw tooManyRequests("Too many requests of the telegram user");
+        }
+
+        AuthResponse authResponse;
+        try {
+            long start = meters.start();
+            authResponse = TelegramAuthValidator.verifyData(data, user,
+                new AuthParams(initData, verifier, authDelta > 0, authDelta));
+            meters.record(Phase.VERIFY, start);
+        } catch (Exception e) {
+            throw unableToParse(e);
+        }
+
+        if (!authResponse.hashValid()) {
+            failedInitData.put(settings.realmId(), settings.verification(), initData);
+            meters.count(Outcome.HASH_INVALID);
+            throw accessDenied("Failed to verify init_data");
+        } else if (!authResponse.dateValid()) {
+            throw dateExpired(meters);
+        }
+
+        if (userLimit > 0 && !rateLimiter.tryAcquire(userLimitKey, userLimit)) {
+            throw tooManyRequests("Too many requests of the telegram user");
+        }
+        return authResponse;
+    }
+
+    /**
+     * Finds linked users of many telegram users with one query, for
+     * {@link #getOrCreateUser(KeycloakSession, RealmModel, AuthResponse, Meters, String)}.
+     *
+     * @return user ids by telegram id
+     */
+    public Map<Long, String> findLinkedUserIds(
+        KeycloakSession session, RealmModel realm, Collection<Long> telegramIds
+    ) {
+        return new TelegramUserLinkStore(session).findUserIds(realm, telegramIds);
+    }
+
+    public UserModel getOrCreateUser(KeycloakSession session, RealmModel realm, AuthResponse authResponse,
+        Meters meters) {
+        return getOrCreateUser(session, realm, authResponse, meters, null);
+    }
+
+    /**
+     * @param linkedUserId user id found by {@link #findLinkedUserIds(KeycloakSession, RealmModel, Collection)}, null
+     *                     to look the user up
+     */
+    public UserModel getOrCreateUser(
+        KeycloakSession session, RealmModel realm, AuthResponse authResponse, Meters meters, String linkedUserId
+    ) {
+        TelegramUserProfile profile = TelegramUserProfile.of(authResponse);
+        ProfileSyncMode syncMode = getProfileSyncMode(realm);
+        String telegramId = authResponse.user().getId().toString();
+        long start = meters.start();
+        UserModel userModel = linkedUserId == null ? null : session.users().getUserById(realm, linkedUserId);
+        if (userModel != null) {
+            userIdCache.put(realm, telegramId, userModel.getId());
+        } else {
+            userModel = findUser(session, realm, authResponse.user().getId());
+        }
+        meters.record(Phase.LOOKUP, start);
+        boolean created = false;
+        if (userModel == null) {
+            start = meters.start();
+            Creation creation =
+                createUserOnce(session, realm, authResponse, profile, syncMode == ProfileSyncMode.ASYNC, meters);
+            userModel = session.users().getUserById(realm, creation.userId());
+            meters.record(Phase.CREATE, start);
+            created = creation.created();
+            userIdCache.put(realm, telegramId, userModel.getId());
+        }
+        meters.count(created ? Outcome.NEW_USER : Outcome.RETURNING_USER);
+        if (syncMode == ProfileSyncMode.ASYNC) {
+            if (!created) {
+                profile.applyEssentialTo(userModel);
+            }
+            if (profile.countChanges(userModel) > 0) {
+                profileSyncQueue.submit(session.getKeycloakSessionFactory(), realm.getId(), userModel.getId(),
+                    profile);
+            }
+        } else if (!created) {
+            int changed = profile.applyTo(userModel);
+            if (changed > 0) {
+                log.debugf("Synchronized %d telegram fields of user %s", changed, userModel.getId());
+            }
+        }
+        return userModel;
+    }
+
+    /**
+     * Creates the user session and tokens for the user.
+     *
+     * @param event event of this exchange, gets the session and audience
+     */
+    public AccessTokenResponse issueTokens(
+        ClientRequest request, EventBuilder event, UserModel userModel, String telegramId, Meters meters
+    ) {
+        KeycloakSession session = request.session();
+        RealmModel realm = request.realm();
+        ClientModel client = request.client();
+        TokenMode tokenMode = getTokenMode(client);
+        SessionMode sessionMode = tokenMode == TokenMode.ACCESS_ONLY ? SessionMode.TRANSIENT : getSessionMode(client);
+
+        // Generate target token
+        long start = meters.start();
+        UserSessionModel userSession = getOrCreateUserSession(request, userModel, telegramId, sessionMode);
+        RootAuthenticationSessionModel rootAuthSession = new AuthenticationSessionManager(
+            session).createAuthenticationSession(realm, false);
+        AuthenticationSessionModel authSession = rootAuthSession.createAuthenticationSession(client);
+
+        authSession.setAuthenticatedUser(userModel);
+        authSession.setProtocol(OIDCLoginProtocol.LOGIN_PROTOCOL);
+        authSession.setClientNote(OIDCLoginProtocol.ISSUER,
+            Urls.realmIssuer(session.getContext().getUri().getBaseUri(), realm.getName()));
+        authSession.setClientNote(OIDCLoginProtocol.SCOPE_PARAM, request.scope());
+        authSession.setClientScopes(Set.of());
+
+        event.session(userSession);
+
+        ClientSessionContext clientSessionCtx =
+            TokenManager.attachAuthenticationSession(session, userSession, authSession);
+        // everything is copied to the client session now, an authentication session left behind only fills the store
+        session.authenticationSessions().removeRootAuthenticationSession(realm, rootAuthSession);
+
+        updateUserSessionFromClientAuth(userSession, request.clientAuthAttributes());
+        meters.record(Phase.SESSION, start);
+
+        start = meters.start();
+        AccessTokenResponseBuilder responseBuilder = request.tokenManager()
+            .responseBuilder(realm, client, event, session, userSession, clientSessionCtx)
+            .generateAccessToken();
+        if (sessionMode != SessionMode.TRANSIENT) {
+            // transient session is gone after the request, refresh token would be useless
+            responseBuilder.generateRefreshToken();
+        }
+
+        AccessToken newToken = responseBuilder.getAccessToken();
+        String audience = request.audience();
+        appendScope(newToken, request.scope());
+        newToken.setOtherClaims(Constants.TELEGRAM_ID, telegramId);
+
+        if (audience != null) {
+            newToken.audience(audience);
+            event.detail(Details.AUDIENCE, audience);
+        }
+        if (tokenMode == TokenMode.ACCESS_ONLY) {
+            compact(newToken, getIntAttribute(client, Constants.TELEGRAM_ACCESS_TOKEN_LIFESPAN));
+        }
+
+        AccessTokenResponse response = responseBuilder.build();
+        if (tokenMode == TokenMode.ACCESS_ONLY) {
+            response.setSessionState(null);
+        }
+        meters.record(Phase.TOKEN, start);
+        return response;
+    }
+
+    /**
+     * Leaves only the claims needed to authorize the telegram user: identity and profile claims are dropped, the user
+     * is identified by {@code sub} and {@link Constants#TELEGRAM_ID}.
+     *
+     * @param lifespan seconds the token lives at most, 0 to keep the client lifespan
+     */
+    private static void compact(AccessToken token, int lifespan) {
+        token.setName(null);
+        token.setGivenName(null);
+        token.setFamilyName(null);
+        token.setPreferredUsername(null);
+        token.setEmail(null);
+        token.setEmailVerified(null);
+        token.setSessionId(null);
+        token.setAllowedOrigins(null);
+        token.getOtherClaims().keySet().retainAll(Set.of(Constants.TELEGRAM_ID));
+        if (lifespan > 0) {
+            long exp = (long) Time.currentTime() + lifespan;
+            if (token.getExp() == null || exp < token.getExp()) {
+                token.exp(exp);
+            }
+        }
+    }
+
+    static int getIntAttribute(RealmModel realm, String name) {
+        String value = realm.getAttribute(name);
+        if (value == null || value.isBlank()) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.warnf("Realm attribute %s must be a number, but was '%s'", name, value);
+            return 0;
+        }
+    }
+
+    private static void appendScope(AccessToken newToken, String scope) {
+        StringBuilder newScope = new StringBuilder(newToken.getScope());
+        if (scope != null) {
+            newScope.append(" ").append(scope);
+        }
+        newScope.append(" ").append(Constants.TELEGRAM);
+        newToken.setScope(newScope.toString());
+    }
+
+    private static int getIntAttribute(ClientModel client, String name) {
+        String value = client.getAttribute(name);
+        if (value == null || value.isBlank()) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.warnf("Client attribute %s must be a number, but was '%s'", name, value);
+            return 0;
+        }
+    }
+
+    private static TokenMode getTokenMode(ClientModel client) {
+        try {
+            return TokenMode.of(client);
+        } catch (IllegalArgumentException e) {
+            log.error("Invalid client configuration", e);
+            throw new TelegramExchangeException(Errors.INVALID_CONFIG, INVALID_ATTRIBUTE, e.getMessage(),
+                Status.BAD_REQUEST);
+        }
+    }
+
+    private static SessionMode getSessionMode(ClientModel client) {
+        try {
+            return SessionMode.of(client);
+        } catch (IllegalArgumentException e) {
+            log.error("Invalid client configuration", e);
+            throw new TelegramExchangeException(Errors.INVALID_CONFIG, INVALID_ATTRIBUTE, e.getMessage(),
+                Status.BAD_REQUEST);
+        }
+    }
+
+    private static UserSessionModel getOrCreateUserSession(
+        ClientRequest request, UserModel userModel, String telegramId, SessionMode sessionMode
+    ) {
+        KeycloakSession session = request.session();
+        RealmModel realm = request.realm();
+        ClientModel client = request.client();
+
+        if (sessionMode == SessionMode.REUSE) {
+            UserSessionModel userSession = session.sessions().getUserSessionsStream(realm, userModel)
+                .filter(us -> telegramId.equals(us.getNote(Constants.TELEGRAM_ID)))
+                .filter(us -> us.getAuthenticatedClientSessionByClient(client.getId()) != null)
+                .filter(us -> AuthenticationManager.isSessionValid(realm, us))
+                .findFirst()
+                .orElse(null);
+            if (userSession != null) {
+                return userSession;
+            }
+        }
+
+        SessionPersistenceState persistenceState = sessionMode == SessionMode.TRANSIENT
+            ? SessionPersistenceState.TRANSIENT
+            : SessionPersistenceState.PERSISTENT;
+        UserSessionModel userSession = session.sessions()
+            .createUserSession(null, realm, userModel, userModel.getUsername(),
+                request.remoteAddress(), "impersonate", false,
+                null, null, persistenceState);
+        userSession.setNote(Constants.TELEGRAM_ID, telegramId);
+        return userSession;
+    }
+
+    private static TelegramExchangeException accessDenied(String reason) {
+        return new TelegramExchangeException(Errors.ACCESS_DENIED, OAuthErrorException.ACCESS_DENIED, reason,
+            Status.FORBIDDEN);
+    }
+
+    private static TelegramExchangeException dateExpired(Meters meters) {
+        meters.count(Outcome.DATE_EXPIRED);
+        return accessDenied("Failed to verify init_data date");
+    }
+
+    private static TelegramExchangeException unableToParse(Exception e) {
+        if (e instanceof IllegalArgumentException) {
+            // malformed init_data is the client's fault and cheap to send, a stack trace of each would flood the log
+            log.debugf("Unable to parse init_data: %s", e.getMessage());
+        } else {
+            log.error("Unable to parse init_data", e);
+        }
+        return new TelegramExchangeException(Errors.INVALID_TOKEN, OAuthErrorException.INVALID_TOKEN,
+            "Unable to parse init_data", Status.BAD_REQUEST);
+    }
+
+    private static TelegramExchangeException tooManyRequests(String reason) {
+        return new TelegramExchangeException(TOO_MANY_REQUESTS, TOO_MANY_REQUESTS, reason, Status.TOO_MANY_REQUESTS);
+    }
+
+    private static TelegramExchangeException unknownBot() {
+        return new TelegramExchangeException(Errors.INVALID_REQUEST, OAuthErrorException.INVALID_REQUEST,
+            "Unknown telegram bot", Status.BAD_REQUEST);
+    }
+
+    private static TelegramExchangeException invalidAttribute(String reason) {
+        return new TelegramExchangeException(INVALID_ATTRIBUTE, INVALID_ATTRIBUTE, reason, Status.BAD_REQUEST);
+    }
+
+    /**
+     * Selects the bot by {@code bot_id} form parameter or {@link Constants#TELEGRAM_BOT_ID} client attribute. Without
+     * them {@link Constants#TELEGRAM_BOT_TOKEN} is used, or the only token of {@link Constants#TELEGRAM_BOT_TOKENS}.
+     */
+    static TelegramSecretKey getSecretKey(RealmModel realm, ClientModel client, String botId) {
+        String botToken = realm.getAttribute(Constants.TELEGRAM_BOT_TOKEN);
+        TelegramBots bots = TelegramBots.of(realm.getAttribute(Constants.TELEGRAM_BOT_TOKENS));
+
+        if (botId == null) {
+            botId = client.getAttribute(Constants.TELEGRAM_BOT_ID);
+        }
+        if (botId != null) {
+            TelegramSecretKey secretKey = findBot(botId, botToken, bots);
+            if (secretKey == null) {
+                throw unknownBot();
+            }
+            return secretKey;
+        }
+
+        if (botToken != null) {
+            return TelegramAuthValidator.getSecretKey(botToken);
+        }
+        TelegramSecretKey secretKey = bots.single();
+        if (secretKey == null) {
+            throw invalidAttribute(bots.size() == 0
+                ? "telegram_bot_token realm attribute is required"
+                : "bot_id is required when realm has several telegram bots");
+        }
+        return secretKey;
+    }
+
+    private static ProfileSyncMode getProfileSyncMode(RealmModel realm) {
+        try {
+            return ProfileSyncMode.of(realm);
+        } catch (IllegalArgumentException e) {
+            log.error("Invalid realm configuration", e);
+            throw new TelegramExchangeException(Errors.INVALID_CONFIG, INVALID_ATTRIBUTE, e.getMessage(),
+                Status.BAD_REQUEST);
+        }
+    }
+
+    private static VerificationMode getVerificationMode(RealmModel realm) {
+        try {
+            return VerificationMode.of(realm);
+        } catch (IllegalArgumentException e) {
+            log.error("Invalid realm configuration", e);
+            throw new TelegramExchangeException(Errors.INVALID_CONFIG, INVALID_ATTRIBUTE, e.getMessage(),
+                Status.BAD_REQUEST);
+        }
+    }
+
+    /**
+     * Bot id is part of the data signed by Telegram, so it must be one of the configured bots: otherwise init_data of
+     * any bot would pass. {@code bot_id} form parameter only selects among {@link Constants#TELEGRAM_BOT_ID} client
+     * and realm attributes and ids of the configured tokens. Without it they are tried in that order.
+     */
+    static long getTrustedBotId(RealmModel realm, ClientModel client, String botIdParam) {
+        Long clientBotId = parseBotId(client.getAttribute(Constants.TELEGRAM_BOT_ID));
+        Long realmBotId = parseBotId(realm.getAttribute(Constants.TELEGRAM_BOT_ID));
+        String botToken = realm.getAttribute(Constants.TELEGRAM_BOT_TOKEN);
+        Long tokenBotId = botToken == null ? null : TelegramBots.botId(botToken);
+        TelegramBots bots = TelegramBots.of(realm.getAttribute(Constants.TELEGRAM_BOT_TOKENS));
+
+        if (botIdParam != null) {
+            Long botId = parseBotId(botIdParam);
+            if (botId == null || !(botId.equals(clientBotId) || botId.equals(realmBotId) || botId.equals(tokenBotId)
+                                   || bots.contains(botId))) {
+                throw unknownBot();
+            }
+            return botId;
+        }
+
+        for (Long botId : new Long[] {clientBotId, realmBotId, tokenBotId, bots.singleId()}) {
+            if (botId != null) {
+                return botId;
+            }
+        }
+        throw invalidAttribute(bots.size() > 1
+            ? "bot_id is required when realm has several telegram bots"
+            : "telegram_bot_id attribute is required for ed25519 verification");
+    }
+
+    private static Long parseBotId(String botId) {
+        if (botId == null || botId.isBlank()) {
+            return null;
+        }
+        try {
+            return Long.parseLong(botId.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static TelegramSecretKey findBot(String botId, String botToken, TelegramBots bots) {
+        long id;
+        try {
+            id = Long.parseLong(botId.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        TelegramSecretKey secretKey = bots.get(id);
+        if (secretKey == null && botToken != null && Long.valueOf(id).equals(TelegramBots.botId(botToken))) {
+            secretKey = TelegramAuthValidator.getSecretKey(botToken);
+        }
+        return secretKey;
+    }
+
+    private static void updateUserSessionFromClientAuth(
+        UserSessionModel userSession, Map<String, String> clientAuthAttributes
+    ) {
+        for (Map.Entry<String, String> attr : clientAuthAttributes.entrySet()) {
+            // reused session already has the notes, don't write them again
+            if (!Objects.equals(attr.getValue(), userSession.getNote(attr.getKey()))) {
+                userSession.setNote(attr.getKey(), attr.getValue());
+            }
+        }
+    }
+
+    /**
+     * Finds the user linked to the telegram user, never creates one. A user found by the link or the attribute is
+     * cached, a cache hit is not written again.
+     *
+     * @return null if the telegram user has no account in the realm
+     */
+    public UserModel findUser(KeycloakSession session, RealmModel realm, long telegramId) {
+        UserProvider userProvider = session.users();
+        String telegramIdString = Long.toString(telegramId);
+
+        String userId = userIdCache.get(realm, telegramIdString);
+        if (userId != null) {
+            UserModel userModel = userProvider.getUserById(realm, userId);
+            if (userModel != null && telegramIdString.equals(userModel.getFirstAttribute(Constants.TELEGRAM_ID))) {
+                return userModel;
+            }
+            userIdCache.invalidate(realm, telegramIdString);
+        }
+
+        TelegramUserLinkStore links = new TelegramUserLinkStore(session);
+        // a link left by a deleted user is replaced only when the user is created again, in its own transaction
+        String linkedUserId = links.findUserId(realm, telegramId);
+        UserModel userModel = linkedUserId == null ? null : userProvider.getUserById(realm, linkedUserId);
+        if (userModel == null) {
+            userModel = userProvider.searchForUserByUserAttributeStream(realm, Constants.TELEGRAM_ID, telegramIdString)
+                .findFirst()
+                .orElse(null);
+            if (userModel != null && linkedUserId == null) {
+                // user was created before the link table existed, backfill the link
+                userModel = backfillLink(session, realm, telegramId, userModel);
+            }
+        }
+        if (userModel != null) {
+            userIdCache.put(realm, telegramIdString, userModel.getId());
+        }
+        return userModel;
+    }
+
+    /**
+     * Links a user created before the link table existed. The link is written in its own transaction, so when a
+     * parallel login of the same user links it first, the duplicate doesn't break the transaction of this request.
+     *
+     * @return the user the telegram user is linked to now
+     */
+    private static UserModel backfillLink(KeycloakSession session, RealmModel realm, long telegramId,
+        UserModel userModel) {
+        String realmId = realm.getId();
+        String userId = userModel.getId();
+        try {
+            KeycloakModelUtils.runJobInTransaction(session.getKeycloakSessionFactory(), s ->
+                new TelegramUserLinkStore(s).link(s.realms().getRealm(realmId), telegramId, userId));
+        } catch (ModelDuplicateException | PersistenceException e) {
+            log.debugf("Telegram user %s was linked concurrently", telegramId);
+        }
+        String linkedUserId = new TelegramUserLinkStore(session).findUserId(realm, telegramId);
+        if (linkedUserId == null || linkedUserId.equals(userId)) {
+            return userModel;
+        }
+        UserModel linkedUser = session.users().getUserById(realm, linkedUserId);
+        return linkedUser == null ? userModel : linkedUser;
+    }
+
+    /**
+     * Parallel first logins of a telegram user on this node wait for the one creating the user. The user is created and
+     * linked in a short transaction of its own, committed before the waiters are released, so they find the link and
+     * reuse the user. A failed write there leaves the transaction of the request intact.
+     */
+    private Creation createUserOnce(
+        KeycloakSession session, RealmModel realm, AuthResponse authResponse, TelegramUserProfile profile,
+        boolean essentialOnly, Meters meters
+    ) {
+        TelegramUser user = authResponse.user();
+
+        if (!realm.isRegistrationAllowed()) {
+            meters.count(Outcome.REGISTRATION_BLOCKED);
+            throw new TelegramExchangeException(Errors.INVALID_CONFIG, OAuthErrorException.ACCESS_DENIED,
+                "Can't create new telegram authenticated user! User registration is not allowed.", Status.BAD_REQUEST);
+        }
+
+        String key = realm.getId() + ":" + user.getId();
+        CompletableFuture<Void> creation = new CompletableFuture<>();
+        CompletableFuture<Void> running = creations.putIfAbsent(key, creation);
+        if (running != null) {
+            awaitCreation(running, user);
+            UserModel userModel = findUser(session, realm, user.getId());
+            if (userModel != null) {
+                return new Creation(userModel.getId(), false);
+            }
+            log.debugf("Telegram user %s was not created by a parallel login, creating it", user.getId());
+            return createNewUser(session, realm.getId(), user, profile, essentialOnly);
+        }
+        try {
+            return createNewUser(session, realm.getId(), user, profile, essentialOnly);
+        } finally {
+            creations.remove(key, creation);
+            creation.complete(null);
+        }
+    }
+
+    private static void awaitCreation(CompletableFuture<Void> creation, TelegramUser user) {
+        try {
+            creation.get(CREATION_WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            log.debugf("Gave up waiting for a parallel login to create telegram user %s", user.getId());
+        }
+    }
+
+    /**
+     * A login on another node creating the same telegram user at the same time makes the link or username write fail.
+     * That transaction is committed by then, so the next attempt finds its link and returns its user.
+     *
+     * @return id of the linked user, created and linked if there is none
+     */
+    private static Creation createNewUser(
+        KeycloakSession session, String realmId, TelegramUser user, TelegramUserProfile profile, boolean essentialOnly
+    ) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return createNewUserOnce(session, realmId, user, profile, essentialOnly);
+            } catch (ModelDuplicateException | PersistenceException e) {
+                if (attempt == CREATION_ATTEMPTS) {
+                    throw new IllegalStateException("Unable to create telegram user " + user.getId(), e);
+                }
+                log.debugf("Telegram user %s was created concurrently, looking it up again", user.getId());
+            }
+        }
+    }
+
+    /**
+     * Runs in a transaction of its own, which takes a second pooled connection while the request holds its own, but
+     * only for the first login of a telegram user.
+     *
+     * @param essentialOnly write only {@link Constants#TELEGRAM_ID}, the rest of the profile is written later
+     * @throws TelegramExchangeException if the username is taken by a user not linked to the telegram user
+     */
+    private static Creation createNewUserOnce(
+        KeycloakSession session, String realmId, TelegramUser user, TelegramUserProfile profile, boolean essentialOnly
+    ) {
+        return KeycloakModelUtils.runJobInTransactionWithResult(session.getKeycloakSessionFactory(), s -> {
+            RealmModel realm = s.realms().getRealm(realmId);
+            s.getContext().setRealm(realm);
+            TelegramUserLinkStore links = new TelegramUserLinkStore(s);
+            String linkedUserId = links.findUserId(realm, user.getId());
+            if (linkedUserId != null) {
+                if (s.users().getUserById(realm, linkedUserId) != null) {
+                    return new Creation(linkedUserId, false);
+                }
+                links.unlink(realm, user.getId());
+            }
+
+            if (s.users().getUserByUsername(realm, user.getUserName()) != null) {
+                throw new TelegramExchangeException(Errors.USERNAME_IN_USE, OAuthErrorException.INVALID_REQUEST,
+                    "Username " + user.getUserName() + " of the telegram user is taken by another user",
+                    Status.CONFLICT);
+            }
+            UserModel userModel = createLinkedUser(s, realm, user, profile, essentialOnly);
+            return new Creation(userModel.getId(), true);
+        });
+    }
+
+    /**
+     * Creates an enabled user with the profile and links it, in the transaction of the session. The telegram user
+     * must not be linked yet.
+     *
+     * @param essentialOnly write only {@link Constants#TELEGRAM_ID} of the profile
+     */
+    static UserModel createLinkedUser(
+        KeycloakSession session, RealmModel realm, TelegramUser user, TelegramUserProfile profile,
+        boolean essentialOnly
+    ) {
+        UserModel userModel = session.users().addUser(realm, user.getUserName());
+        userModel.setEnabled(true);
+        if (essentialOnly) {
+            profile.applyEssentialTo(userModel);
+        } else {
+            profile.applyTo(userModel);
+        }
+        new TelegramUserLinkStore(session).link(realm, user.getId(), userModel.getId());
+        return userModel;
+    }
+
+    private record Creation(String userId, boolean created) {
+
+    }
+
+    /**
+     * Configuration read by {@link #settings(RealmModel, ClientModel, String)}.
+     *
+     * @param verification verification mode and the selected bot, init_data failed with one bot may pass with another
+     * @param authDelta    seconds init_data is valid for, 0 if not checked
+     * @param userLimit    exchanges per minute of a telegram user, 0 if not limited
+     */
+    public record Settings(
+        String realmId, InitDataVerifier verifier, String verification, int authDelta, int userLimit
+    ) {
+
+    }
+
+    /**
+     * The authenticated client request tokens are issued for, the same for all items of a batch.
+     *
+     * @param scope    requested scope, may be null
+     * @param audience requested audience, may be null
+     */
+    public record ClientRequest(
+        KeycloakSession session, RealmModel realm, ClientModel client, TokenManager tokenManager,
+        String remoteAddress, Map<String, String> clientAuthAttributes, String scope, String audience
+    ) {
+
+    }
+}
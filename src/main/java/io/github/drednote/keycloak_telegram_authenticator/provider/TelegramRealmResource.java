@@ -0,0 +1,326 @@
+package io.github.drednote.keycloak_telegram_authenticator.provider;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.github.drednote.keycloak_telegram_authenticator.InitData;
+import io.github.drednote.keycloak_telegram_authenticator.TelegramAuthValidator.AuthResponse;
+import io.github.drednote.keycloak_telegram_authenticator.provider.ExchangeMetrics.Meters;
+import io.github.drednote.keycloak_telegram_authenticator.provider.ExchangeMetrics.Phase;
+import io.github.drednote.keycloak_telegram_authenticator.provider.TelegramExchangeService.ClientRequest;
+import io.github.drednote.keycloak_telegram_authenticator.provider.TelegramExchangeService.Settings;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.DefaultValue;
+import jakarta.ws.rs.NotAuthorizedException;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MultivaluedMap;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.Response.Status;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.IntStream;
+import org.jboss.logging.Logger;
+import org.keycloak.OAuth2Constants;
+import org.keycloak.OAuthErrorException;
+import org.keycloak.common.Profile;
+import org.keycloak.events.Details;
+import org.keycloak.events.Errors;
+import org.keycloak.events.EventBuilder;
+import org.keycloak.events.EventType;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.protocol.oidc.TokenManager;
+import org.keycloak.protocol.oidc.utils.AuthorizeClientUtil;
+import org.keycloak.representations.AccessTokenResponse;
+import org.keycloak.services.CorsErrorResponseException;
+import org.keycloak.services.cors.Cors;
+import org.keycloak.services.managers.AppAuthManager;
+import org.keycloak.services.managers.AuthenticationManager.AuthResult;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resources.admin.AdminAuth;
+import org.keycloak.services.resources.admin.permissions.AdminPermissions;
+import org.keycloak.utils.MediaType;
+
+/**
+ * Telegram endpoints of a realm, see {@link TelegramRealmResourceProviderFactory}.
+ */
+public class TelegramRealmResource implements RealmResourceProvider {
+
+    private static final Logger log = Logger.getLogger(TelegramRealmResource.class);
+    private static final String RESOLVE_USER = "resolve_user";
+    // proof fields mean nothing to the caller, and the user is returned parsed
+    private static final Set<String> VALIDATION_EXCLUDED_CLAIMS = Set.of(InitData.HASH, InitData.SIGNATURE, "user");
+
+    private final KeycloakSession session;
+    private final TelegramExchangeService service;
+    private final TelegramUserImporter importer;
+    private final int batchMaxSize;
+
+    public TelegramRealmResource(
+        KeycloakSession session, TelegramExchangeService service, TelegramUserImporter importer, int batchMaxSize
+    ) {
+        this.session = session;
+        this.service = service;
+        this.importer = importer;
+        this.batchMaxSize = batchMaxSize;
+    }
+
+    @Override
+    public Object getResource() {
+        return this;
+    }
+
+    /**
+     * Exchanges many init_data of one confidential client, e.g. a bot backend, in one request. Client authentication,
+     * bot resolution and the address rate limit are done once, init_data are verified in parallel, and linked users
+     * are found with one query. Each item is exchanged as by the token exchange provider and gets its own event.
+     * <p>
+     * Form parameters: repeated {@code init_data}, optional {@code bot_id}, {@code scope} and {@code audience} for
+     * all items. Responds with a JSON array of {@link BatchItem} in the order of {@code init_data}.
+     */
+    @POST
+    @Path("token/batch")
+    @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response exchangeBatch() {
+        RealmModel realm = session.getContext().getRealm();
+        String remoteAddress = session.getContext().getConnection().getRemoteAddr();
+        EventBuilder event = new EventBuilder(realm, session, session.getContext().getConnection())
+            .event(EventType.TOKEN_EXCHANGE);
+        Cors cors = Cors.builder().auth().allowedMethods("POST").exposedHeaders(Cors.ACCESS_CONTROL_ALLOW_METHODS);
+
+        // the same feature gates the token exchange provider
+        if (!Profile.isFeatureEnabled(Profile.Feature.TOKEN_EXCHANGE)) {
+            throw error(event, cors, Errors.NOT_ALLOWED, OAuthErrorException.UNSUPPORTED_GRANT_TYPE,
+                "Token exchange is not enabled", Status.BAD_REQUEST);
+        }
+
+        AuthorizeClientUtil.ClientAuthResult clientAuth = AuthorizeClientUtil.authorizeClient(session, event, cors);
+        ClientModel client = clientAuth.getClient();
+        session.getContext().setClient(client);
+        event.client(client);
+        if (client.isPublicClient()) {
+            throw error(event, cors, Errors.INVALID_CLIENT, OAuthErrorException.UNAUTHORIZED_CLIENT,
+                "Public client is not allowed to exchange a batch", Status.FORBIDDEN);
+        }
+
+        MultivaluedMap<String, String> form = session.getContext().getHttpRequest().getDecodedFormParameters();
+        List<String> initDataList = form.get(TelegramExchangeRequest.INIT_DATA);
+        if (initDataList == null || initDataList.isEmpty()) {
+            throw error(event, cors, Errors.INVALID_REQUEST, OAuthErrorException.INVALID_REQUEST,
+                "init_data is required", Status.BAD_REQUEST);
+        }
+        if (initDataList.size() > batchMaxSize) {
+            throw error(event, cors, Errors.INVALID_REQUEST, OAuthErrorException.INVALID_REQUEST,
+                "Batch must not have more than " + batchMaxSize + " init_data", Status.BAD_REQUEST);
+        }
+
+        Meters meters = service.meters(realm, client);
+        Settings settings;
+        try {
+            service.checkAddress(realm, remoteAddress);
+            settings = service.settings(realm, client, form.getFirst(TelegramExchangeRequest.BOT_ID));
+        } catch (TelegramExchangeException e) {
+            throw error(event, cors, e.getEventError(), e.getError(), e.getMessage(), e.getStatus());
+        }
+
+        // verification doesn't touch the session, so it is the only parallel part
+        int size = initDataList.size();
+        AuthResponse[] authResponses = new AuthResponse[size];
+        TelegramExchangeException[] errors = new TelegramExchangeException[size];
+        IntStream.range(0, size).parallel().forEach(i -> {
+            try {
+                authResponses[i] = service.validate(settings,
+                    TelegramExchangeRequest.of(initDataList.get(i), null), meters);
+            } catch (TelegramExchangeException e) {
+                errors[i] = e;
+            }
+        });
+
+        List<Long> telegramIds = new ArrayList<>();
+        for (AuthResponse authResponse : authResponses) {
+            if (authResponse != null) {
+                telegramIds.add(authResponse.user().getId());
+            }
+        }
+        Map<Long, String> linkedUserIds = service.findLinkedUserIds(session, realm, telegramIds);
+
+        String audience = form.getFirst(OAuth2Constants.AUDIENCE);
+        ClientRequest clientRequest = new ClientRequest(session, realm, client, new TokenManager(), remoteAddress,
+            clientAuth.getClientAuthAttributes(), form.getFirst(OAuth2Constants.SCOPE), audience);
+        List<BatchItem> items = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            EventBuilder itemEvent = event.clone();
+            try {
+                if (errors[i] != null) {
+                    throw errors[i];
+                }
+                AuthResponse authResponse = authResponses[i];
+                Long telegramId = authResponse.user().getId();
+                UserModel userModel = service.getOrCreateUser(session, realm, authResponse, meters,
+                    linkedUserIds.get(telegramId));
+                AccessTokenResponse tokens = service.issueTokens(clientRequest, itemEvent, userModel,
+                    telegramId.toString(), meters);
+                service.success(itemEvent.user(userModel), realm, client);
+                items.add(new BatchItem(telegramId.toString(), userModel.getId(), tokens, null, null));
+            } catch (TelegramExchangeException e) {
+                itemEvent.detail(Details.REASON, e.getMessage());
+                itemEvent.error(e.getEventError());
+                items.add(new BatchItem(telegramId(authResponses[i]), null, null, e.getError(), e.getMessage()));
+            } catch (RuntimeException e) {
+                // the tokens of the other items stay valid unless the failure spoiled the transaction, see below
+                log.errorf(e, "Failed to exchange init_data %d of a batch", i);
+                itemEvent.detail(Details.REASON, e.getMessage());
+                itemEvent.error(OAuthErrorException.SERVER_ERROR);
+                items.add(new BatchItem(telegramId(authResponses[i]), null, null, OAuthErrorException.SERVER_ERROR,
+                    "Failed to exchange init_data"));
+            }
+        }
+
+        // sessions and profile writes of all items share the request transaction: if it will be rolled back, none of
+        // the issued tokens would refer to a stored session, so the batch fails as a whole
+        if (session.getTransactionManager().getRollbackOnly()) {
+            throw error(event, cors, OAuthErrorException.SERVER_ERROR, OAuthErrorException.SERVER_ERROR,
+                "Failed to store the exchanges of the batch", Status.INTERNAL_SERVER_ERROR);
+        }
+
+        return cors.add(Response.ok(items, MediaType.APPLICATION_JSON_TYPE));
+    }
+
+    /**
+     * Verifies one init_data without creating users, sessions or tokens, for services that only need to know who sent
+     * it. Takes the same rate limits as the token exchange.
+     * <p>
+     * Form parameters: {@code init_data}, optional {@code bot_id}, and {@code resolve_user=true} to also look up the
+     * linked user. Responds with {@link ValidationResult}.
+     */
+    @POST
+    @Path("validate")
+    @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response validate() {
+        RealmModel realm = session.getContext().getRealm();
+        EventBuilder event = new EventBuilder(realm, session, session.getContext().getConnection())
+            .event(EventType.INTROSPECT_TOKEN);
+        Cors cors = Cors.builder().auth().allowedMethods("POST").exposedHeaders(Cors.ACCESS_CONTROL_ALLOW_METHODS);
+
+        ClientModel client = AuthorizeClientUtil.authorizeClient(session, event, cors).getClient();
+        session.getContext().setClient(client);
+        event.client(client);
+
+        MultivaluedMap<String, String> form = session.getContext().getHttpRequest().getDecodedFormParameters();
+        String initData = form.getFirst(TelegramExchangeRequest.INIT_DATA);
+        if (initData == null) {
+            throw error(event, cors, Errors.INVALID_REQUEST, OAuthErrorException.INVALID_REQUEST,
+                "init_data is required", Status.BAD_REQUEST);
+        }
+
+        Meters meters = service.meters(realm, client);
+        AuthResponse authResponse;
+        String userId = null;
+        try {
+            service.checkAddress(realm, session.getContext().getConnection().getRemoteAddr());
+            TelegramExchangeRequest request =
+                TelegramExchangeRequest.of(initData, form.getFirst(TelegramExchangeRequest.BOT_ID));
+            authResponse = service.validate(service.settings(realm, client, request.botId()), request, meters);
+            if (Boolean.parseBoolean(form.getFirst(RESOLVE_USER))) {
+                long start = meters.start();
+                UserModel userModel = service.findUser(session, realm, authResponse.user().getId());
+                meters.record(Phase.LOOKUP, start);
+                if (userModel != null) {
+                    userId = userModel.getId();
+                    event.user(userModel);
+                }
+            }
+        } catch (TelegramExchangeException e) {
+            throw error(event, cors, e.getEventError(), e.getError(), e.getMessage(), e.getStatus());
+        }
+        service.success(event, realm, client);
+
+        Map<String, String> claims = authResponse.data().toMap();
+        claims.keySet().removeAll(VALIDATION_EXCLUDED_CLAIMS);
+        ValidationResult result = new ValidationResult(authResponse.user().getId().toString(),
+            authResponse.user().getFields(), claims, userId);
+        return cors.add(Response.ok(result, MediaType.APPLICATION_JSON_TYPE));
+    }
+
+    /**
+     * Creates and links users of telegram users that have not logged in yet, e.g. when migrating from another user
+     * store. Requires a bearer token of a user that can manage users of the realm.
+     * <p>
+     * The body is JSON lines, one telegram user per line as in the user json of init_data. Lines before {@code offset}
+     * are skipped, so an interrupted import continues from {@link TelegramUserImporter.Result#nextOffset()}.
+     */
+    @POST
+    @Path("users/import")
+    @Consumes({"application/x-ndjson", MediaType.APPLICATION_JSON, "text/plain"})
+    @Produces(MediaType.APPLICATION_JSON)
+    public TelegramUserImporter.Result importUsers(@QueryParam("offset") @DefaultValue("0") long offset,
+        InputStream body) throws IOException {
+        RealmModel realm = session.getContext().getRealm();
+        AuthResult auth = new AppAuthManager.BearerTokenAuthenticator(session).authenticate();
+        if (auth == null) {
+            throw new NotAuthorizedException("Bearer");
+        }
+        AdminAuth adminAuth = new AdminAuth(realm, auth.token(), auth.user(), auth.client());
+        AdminPermissions.evaluator(session, realm, adminAuth).users().requireManage();
+
+        return importer.run(session.getKeycloakSessionFactory(), realm.getId(), body, offset);
+    }
+
+    private static String telegramId(AuthResponse authResponse) {
+        return authResponse == null ? null : authResponse.user().getId().toString();
+    }
+
+    private static CorsErrorResponseException error(
+        EventBuilder event, Cors cors, String eventError, String error, String reason, Status status
+    ) {
+        event.detail(Details.REASON, reason);
+        event.error(eventError);
+        return new CorsErrorResponseException(cors, error, reason, status);
+    }
+
+    @Override
+    public void close() {
+
+    }
+
+    /**
+     * Result of one init_data of a batch: tokens or the error the token exchange would respond with.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public record BatchItem(
+        @JsonProperty("telegram_id") String telegramId,
+        @JsonProperty("user_id") String userId,
+        @JsonProperty("tokens") AccessTokenResponse tokens,
+        @JsonProperty("error") String error,
+        @JsonProperty("error_description") String errorDescription
+    ) {
+
+    }
+
+    /**
+     * Verified content of init_data.
+     *
+     * @param user     scalar fields of the telegram user as sent by Telegram
+     * @param initData other fields of init_data, e.g. {@code auth_date}, {@code query_id}, {@code start_param}
+     * @param userId   id of the linked user, only if {@code resolve_user} was requested and the user exists
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public record ValidationResult(
+        @JsonProperty("telegram_id") String telegramId,
+        @JsonProperty("user") Map<String, String> user,
+        @JsonProperty("init_data") Map<String, String> initData,
+        @JsonProperty("user_id") String userId
+    ) {
+
+    }
+}
@@ -0,0 +1,53 @@
+package io.github.drednote.keycloak_telegram_authenticator.provider;
+
+import org.keycloak.Config.Scope;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.protocol.oidc.TokenExchangeProvider;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resource.RealmResourceProviderFactory;
+
+/**
+ * Telegram endpoints under {@code /realms/{realm}/telegram}. They share {@link TelegramExchangeService} with the token
+ * exchange provider, so caches and rate limits are common.
+ */
+public class TelegramRealmResourceProviderFactory implements RealmResourceProviderFactory {
+
+    public static final String PROVIDER_ID = "telegram";
+
+    private static final int DEFAULT_BATCH_MAX_SIZE = 100;
+    private static final int DEFAULT_IMPORT_CHUNK_SIZE = 500;
+    private static final int DEFAULT_IMPORT_PARALLELISM = 4;
+
+    private int batchMaxSize;
+    private TelegramUserImporter importer;
+    private TelegramExchangeService service;
+
+    @Override
+    public RealmResourceProvider create(KeycloakSession session) {
+        return new TelegramRealmResource(session, service, importer, batchMaxSize);
+    }
+
+    @Override
+    public void init(Scope config) {
+        batchMaxSize = config.getInt("batch-max-size", DEFAULT_BATCH_MAX_SIZE);
+        importer = new TelegramUserImporter(config.getInt("import-chunk-size", DEFAULT_IMPORT_CHUNK_SIZE),
+            config.getInt("import-parallelism", DEFAULT_IMPORT_PARALLELISM));
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        service = ((TelegramTokenExchangeProviderFactory) factory.getProviderFactory(TokenExchangeProvider.class,
+            TelegramTokenExchangeProviderFactory.PROVIDER_ID)).getService();
+    }
+
+    @Override
+    public void close() {
+
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+}
@@ -1,36 +1,102 @@
 package io.github.drednote.keycloak_telegram_authenticator.provider;
 
+import io.github.drednote.keycloak_telegram_authenticator.Constants;
+import io.github.drednote.keycloak_telegram_authenticator.TelegramPublicKeys;
+import io.github.drednote.keycloak_telegram_authenticator.jpa.TelegramUserLinkStore;
+import io.micrometer.core.instrument.Metrics;
 import org.keycloak.Config.Scope;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel.RealmRemovedEvent;
+import org.keycloak.models.UserModel.UserRemovedEvent;
 import org.keycloak.protocol.oidc.TokenExchangeProvider;
 import org.keycloak.protocol.oidc.TokenExchangeProviderFactory;
 
 public class TelegramTokenExchangeProviderFactory implements TokenExchangeProviderFactory {
 
+    public static final String PROVIDER_ID = "Telegram Auth Token Exchange";
+
+    private static final long DEFAULT_USER_CACHE_MAX_SIZE = 100_000;
+    private static final long DEFAULT_USER_CACHE_LIFESPAN = 86400;
+    private static final long DEFAULT_EXCHANGE_CACHE_MAX_BYTES = 16 * 1024 * 1024;
+    private static final long DEFAULT_EXCHANGE_CACHE_MAX_TTL = 60;
+    private static final long DEFAULT_RATE_LIMIT_MAX_KEYS = 100_000;
+    private static final long DEFAULT_FAILED_CACHE_MAX_SIZE = 100_000;
+    private static final long DEFAULT_FAILED_CACHE_TTL = 30;
+    private static final int DEFAULT_PROFILE_SYNC_QUEUE_SIZE = 10_000;
+    private static final int DEFAULT_PROFILE_SYNC_CONCURRENCY = 4;
+
+    private TelegramUserIdCache userIdCache;
+    private ExchangeResponseCache responseCache;
+    private ProfileSyncQueue profileSyncQueue;
+    private SuccessEvents successEvents;
+    private TelegramExchangeService service;
+
     @Override
     public TokenExchangeProvider create(KeycloakSession session) {
-        return new TelegramTokenExchangeProvider();
+        return new TelegramTokenExchangeProvider(responseCache, service);
+    }
+
+    /**
+     * @return exchange logic shared with the telegram realm endpoints
+     */
+    public TelegramExchangeService getService() {
+        return service;
     }
 
     @Override
     public void init(Scope config) {
-
+        userIdCache = new TelegramUserIdCache(config.getLong("user-cache-max-size", DEFAULT_USER_CACHE_MAX_SIZE),
+            config.getLong("user-cache-lifespan", DEFAULT_USER_CACHE_LIFESPAN));
+        responseCache = new ExchangeResponseCache(
+            config.getLong("exchange-cache-max-bytes", DEFAULT_EXCHANGE_CACHE_MAX_BYTES),
+            config.getLong("exchange-cache-max-ttl", DEFAULT_EXCHANGE_CACHE_MAX_TTL));
+        String[] keys = config.getArray("public-keys");
+        TelegramPublicKeys publicKeys = keys == null || keys.length == 0
+            ? TelegramPublicKeys.parse(TelegramPublicKeys.PRODUCTION)
+            : TelegramPublicKeys.parse(keys);
+        // Keycloak binds its metrics endpoint registry to the global one
+        ExchangeMetrics metrics = new ExchangeMetrics(Metrics.globalRegistry);
+        RateLimiter rateLimiter =
+            new RateLimiter(config.getLong("rate-limit-max-keys", DEFAULT_RATE_LIMIT_MAX_KEYS));
+        FailedInitDataCache failedInitData = new FailedInitDataCache(
+            config.getLong("failed-cache-max-size", DEFAULT_FAILED_CACHE_MAX_SIZE),
+            config.getLong("failed-cache-ttl", DEFAULT_FAILED_CACHE_TTL));
+        profileSyncQueue = new ProfileSyncQueue(
+            config.getInt("profile-sync-queue-size", DEFAULT_PROFILE_SYNC_QUEUE_SIZE),
+            config.getInt("profile-sync-concurrency", DEFAULT_PROFILE_SYNC_CONCURRENCY),
+            Metrics.globalRegistry);
+        successEvents = new SuccessEvents();
+        service = new TelegramExchangeService(userIdCache, publicKeys, metrics, rateLimiter, failedInitData,
+            profileSyncQueue, successEvents);
     }
 
     @Override
     public void postInit(KeycloakSessionFactory factory) {
-
+        successEvents.start(factory);
+        factory.register(event -> {
+            if (event instanceof UserRemovedEvent removed) {
+                String telegramId = removed.getUser().getFirstAttribute(Constants.TELEGRAM_ID);
+                if (telegramId != null) {
+                    userIdCache.invalidate(removed.getRealm(), telegramId);
+                }
+                new TelegramUserLinkStore(removed.getKeycloakSession())
+                    .removeByUser(removed.getRealm(), removed.getUser().getId());
+            } else if (event instanceof RealmRemovedEvent removed) {
+                new TelegramUserLinkStore(removed.getKeycloakSession()).removeByRealm(removed.getRealm());
+            }
+        });
     }
 
     @Override
     public void close() {
-
+        profileSyncQueue.close();
+        successEvents.close();
     }
 
     @Override
     public String getId() {
-        return "Telegram Auth Token Exchange";
+        return PROVIDER_ID;
     }
 
     @Override
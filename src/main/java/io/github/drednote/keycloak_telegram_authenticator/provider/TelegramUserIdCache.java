@@ -0,0 +1,48 @@
+package io.github.drednote.keycloak_telegram_authenticator.provider;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.concurrent.TimeUnit;
+import org.keycloak.models.RealmModel;
+
+/**
+ * Realm scoped mapping from telegram id to Keycloak user id.
+ * <p>
+ * Entries are kept on each node in a cache bounded by size, so a node holds only its most recently seen telegram users
+ * and a lookup never leaves the node. Nodes don't share or replicate entries.
+ * <p>
+ * A cached user id is only a hint: the caller must check that the user still exists and still has the telegram id,
+ * and {@link #invalidate} the entry otherwise. This covers users deleted or changed on other nodes, so entries need
+ * no cluster-wide invalidation.
+ */
+public class TelegramUserIdCache {
+
+    private final Cache<String, String> cache;
+
+    /**
+     * @param maxSize         maximum number of entries on a node, 0 to not cache
+     * @param lifespanSeconds how long an entry lives after it was written
+     */
+    public TelegramUserIdCache(long maxSize, long lifespanSeconds) {
+        this.cache = CacheBuilder.newBuilder()
+            .maximumSize(maxSize)
+            .expireAfterWrite(lifespanSeconds, TimeUnit.SECONDS)
+            .build();
+    }
+
+    public String get(RealmModel realm, String telegramId) {
+        return cache.getIfPresent(key(realm, telegramId));
+    }
+
+    public void put(RealmModel realm, String telegramId, String userId) {
+        cache.put(key(realm, telegramId), userId);
+    }
+
+    public void invalidate(RealmModel realm, String telegramId) {
+        cache.invalidate(key(realm, telegramId));
+    }
+
+    private static String key(RealmModel realm, String telegramId) {
+        return realm.getId() + ":" + telegramId;
+    }
+}
@@ -0,0 +1,212 @@
+package io.github.drednote.keycloak_telegram_authenticator.provider;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.github.drednote.keycloak_telegram_authenticator.Constants;
+import io.github.drednote.keycloak_telegram_authenticator.TelegramAuthValidator;
+import io.github.drednote.keycloak_telegram_authenticator.TelegramUser;
+import io.github.drednote.keycloak_telegram_authenticator.jpa.TelegramUserLinkStore;
+import jakarta.persistence.PersistenceException;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ModelDuplicateException;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Imports telegram users from JSON lines of the same shape as the user json of init_data, at least {@code id}, and
+ * usually {@code username}, {@code first_name} and {@code last_name}.
+ * <p>
+ * Users are created and linked as on the first login, with the same {@link TelegramUserProfile}, so their first login
+ * finds them by the link. Lines are imported in chunks, each in its own transaction, several chunks in parallel.
+ * Telegram users that are already linked are skipped, so an interrupted import can simply be started again, from
+ * {@link Result#nextOffset()} to skip the lines already imported. Users created before the link table existed are
+ * found by their {@link Constants#TELEGRAM_ID} attribute and linked instead, as on their login, and skipped too.
+ */
+public class TelegramUserImporter {
+
+    private static final Logger log = Logger.getLogger(TelegramUserImporter.class);
+
+    private final int chunkSize;
+    private final int parallelism;
+
+    public TelegramUserImporter(int chunkSize, int parallelism) {
+        this.chunkSize = chunkSize;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @param offset number of lines to skip
+     */
+    public Result run(KeycloakSessionFactory sessionFactory, String realmId, InputStream input, long offset)
+        throws IOException {
+        Semaphore slots = new Semaphore(parallelism);
+        List<Future<Chunk>> chunks = new ArrayList<>();
+        long lineNumber = 0;
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+             BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8))) {
+            Map<Long, String> lines = new LinkedHashMap<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (lineNumber++ < offset || line.isBlank()) {
+                    continue;
+                }
+                lines.put(lineNumber, line);
+                if (lines.size() == chunkSize) {
+                    chunks.add(submit(executor, slots, sessionFactory, realmId, lines));
+                    lines = new LinkedHashMap<>();
+                }
+            }
+            if (!lines.isEmpty()) {
+                chunks.add(submit(executor, slots, sessionFactory, realmId, lines));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import interrupted", e);
+        }
+
+        long created = 0;
+        long skipped = 0;
+        long failed = 0;
+        long nextOffset = lineNumber;
+        for (Future<Chunk> future : chunks) {
+            Chunk chunk;
+            try {
+                chunk = future.get();
+            } catch (ExecutionException | InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            created += chunk.created();
+            skipped += chunk.skipped();
+            failed += chunk.failed();
+            if (!chunk.complete()) {
+                nextOffset = Math.min(nextOffset, chunk.firstLine() - 1);
+            }
+        }
+        return new Result(lineNumber, created, skipped, failed, nextOffset);
+    }
+
+    private Future<Chunk> submit(
+        ExecutorService executor, Semaphore slots, KeycloakSessionFactory sessionFactory, String realmId,
+        Map<Long, String> lines
+    ) throws InterruptedException {
+        // the reader waits for a free slot, so at most parallelism chunks are held in memory
+        slots.acquire();
+        return executor.submit(() -> {
+            try {
+                return importChunk(sessionFactory, realmId, lines);
+            } finally {
+                slots.release();
+            }
+        });
+    }
+
+    private static Chunk importChunk(KeycloakSessionFactory sessionFactory, String realmId, Map<Long, String> lines) {
+        long firstLine = lines.keySet().iterator().next();
+        Map<Long, TelegramUser> users = new LinkedHashMap<>();
+        int failed = 0;
+        for (Map.Entry<Long, String> line : lines.entrySet()) {
+            try {
+                TelegramUser user = TelegramAuthValidator.parseUser(line.getValue());
+                users.putIfAbsent(user.getId(), user);
+            } catch (RuntimeException e) {
+                failed++;
+                log.warnf("Skipped line %d of telegram user import: %s", line.getKey(), e.getMessage());
+            }
+        }
+        // repeated telegram ids of the chunk are imported once
+        int repeated = lines.size() - failed - users.size();
+
+        try {
+            int created = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+                session -> importUsers(session, realmId, users.values()));
+            return new Chunk(firstLine, created, repeated + users.size() - created, failed, true);
+        } catch (ModelDuplicateException | PersistenceException e) {
+            // a username taken by another user, or a concurrent login: import one by one to find it
+            log.debugf(e, "Importing telegram users of line %d one by one", firstLine);
+        } catch (RuntimeException e) {
+            log.errorf(e, "Failed to import telegram users of line %d", firstLine);
+            return new Chunk(firstLine, 0, repeated, failed + users.size(), false);
+        }
+
+        int created = 0;
+        int notCreated = 0;
+        for (TelegramUser user : users.values()) {
+            try {
+                created += KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+                    session -> importUsers(session, realmId, List.of(user)));
+            } catch (RuntimeException e) {
+                notCreated++;
+                log.warnf("Failed to import telegram user %s: %s", user.getId(), e.getMessage());
+            }
+        }
+        return new Chunk(firstLine, created, repeated + users.size() - created - notCreated, failed + notCreated,
+            true);
+    }
+
+    /**
+     * @return number of created users
+     */
+    private static int importUsers(KeycloakSession session, String realmId, Iterable<TelegramUser> users) {
+        RealmModel realm = session.realms().getRealm(realmId);
+        session.getContext().setRealm(realm);
+        List<Long> telegramIds = new ArrayList<>();
+        users.forEach(user -> telegramIds.add(user.getId()));
+        TelegramUserLinkStore links = new TelegramUserLinkStore(session);
+        Map<Long, String> linked = links.findUserIds(realm, telegramIds);
+        List<Long> unlinked = telegramIds.stream().filter(id -> !linked.containsKey(id)).toList();
+        Map<Long, String> legacy = links.findUserIdsByAttribute(realm, unlinked);
+        int created = 0;
+        for (TelegramUser user : users) {
+            if (linked.containsKey(user.getId())) {
+                continue;
+            }
+            String legacyUserId = legacy.get(user.getId());
+            if (legacyUserId != null) {
+                links.link(realm, user.getId(), legacyUserId);
+            } else {
+                TelegramExchangeService.createLinkedUser(session, realm, user, TelegramUserProfile.of(user), false);
+                created++;
+            }
+        }
+        return created;
+    }
+
+    /**
+     * @param firstLine number of the first line, starting from 1
+     * @param complete  false if the chunk must be imported again
+     */
+    private record Chunk(long firstLine, int created, int skipped, int failed, boolean complete) {
+
+    }
+
+    /**
+     * @param lines      lines read, including skipped by offset
+     * @param skipped    users already linked, linked by their attribute, or repeated
+     * @param failed     lines that can't be parsed or users that can't be created, e.g. because the username is taken
+     * @param nextOffset offset to continue an interrupted import from
+     */
+    public record Result(
+        @JsonProperty("lines") long lines,
+        @JsonProperty("created") long created,
+        @JsonProperty("skipped") long skipped,
+        @JsonProperty("failed") long failed,
+        @JsonProperty("next_offset") long nextOffset
+    ) {
+
+    }
+}
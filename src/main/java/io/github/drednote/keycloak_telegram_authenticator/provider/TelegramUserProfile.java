@@ -0,0 +1,100 @@
+package io.github.drednote.keycloak_telegram_authenticator.provider;
+
+import io.github.drednote.keycloak_telegram_authenticator.Constants;
+import io.github.drednote.keycloak_telegram_authenticator.TelegramAuthValidator.AuthResponse;
+import io.github.drednote.keycloak_telegram_authenticator.TelegramUser;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import org.keycloak.models.UserModel;
+
+/**
+ * Keycloak user fields taken from a telegram user: first and last name, and a {@code telegram_<field>} attribute
+ * for every scalar field of the user json.
+ * <p>
+ * {@link #applyTo(UserModel)} compares them with the stored values first and writes only the ones that differ, so
+ * a login with unchanged telegram data doesn't write anything. Attributes missing in the json are kept, because
+ * Telegram omits some fields (like {@code photo_url}) depending on privacy settings.
+ */
+public final class TelegramUserProfile {
+
+    private final String firstName;
+    private final String lastName;
+    private final Map<String, String> attributes;
+
+    private TelegramUserProfile(String firstName, String lastName, Map<String, String> attributes) {
+        this.firstName = firstName;
+        this.lastName = lastName;
+        this.attributes = attributes;
+    }
+
+    public static TelegramUserProfile of(AuthResponse authResponse) {
+        return of(authResponse.user());
+    }
+
+    public static TelegramUserProfile of(TelegramUser user) {
+        Map<String, String> attributes = new HashMap<>();
+        // fields were read together with the user, the json is not parsed again
+        user.getFields().forEach((key, value) -> attributes.put(Constants.TELEGRAM + "_" + key, value));
+        attributes.put(Constants.TELEGRAM_ID, user.getId().toString());
+        return new TelegramUserProfile(user.getFirstName(), user.getLastName(), attributes);
+    }
+
+    /**
+     * @return number of changed values
+     */
+    public int applyTo(UserModel userModel) {
+        return apply(userModel, true);
+    }
+
+    /**
+     * @return number of values {@link #applyTo(UserModel)} would change
+     */
+    public int countChanges(UserModel userModel) {
+        return apply(userModel, false);
+    }
+
+    /**
+     * Writes only {@link Constants#TELEGRAM_ID}, the one field needed to find the user and issue tokens.
+     *
+     * @return number of changed values
+     */
+    public int applyEssentialTo(UserModel userModel) {
+        String telegramId = attributes.get(Constants.TELEGRAM_ID);
+        if (telegramId.equals(userModel.getFirstAttribute(Constants.TELEGRAM_ID))) {
+            return 0;
+        }
+        userModel.setSingleAttribute(Constants.TELEGRAM_ID, telegramId);
+        return 1;
+    }
+
+    private int apply(UserModel userModel, boolean write) {
+        int changed = 0;
+        if (!Objects.equals(firstName, userModel.getFirstName())) {
+            if (write) {
+                userModel.setFirstName(firstName);
+            }
+            changed++;
+        }
+        if (!Objects.equals(lastName, userModel.getLastName())) {
+            if (write) {
+                userModel.setLastName(lastName);
+            }
+            changed++;
+        }
+
+        Map<String, List<String>> stored = userModel.getAttributes();
+        Map<String, String> diff = new HashMap<>();
+        attributes.forEach((key, value) -> {
+            List<String> current = stored.get(key);
+            if (current == null || current.size() != 1 || !value.equals(current.get(0))) {
+                diff.put(key, value);
+            }
+        });
+        if (write) {
+            diff.forEach(userModel::setSingleAttribute);
+        }
+        return changed + diff.size();
+    }
+}
@@ -0,0 +1,34 @@
+package io.github.drednote.keycloak_telegram_authenticator.provider;
+
+import io.github.drednote.keycloak_telegram_authenticator.Constants;
+import java.util.Locale;
+import org.keycloak.models.ClientModel;
+
+/**
+ * Which tokens an exchange issues. Set per client with the {@link Constants#TELEGRAM_TOKEN_MODE} client attribute.
+ */
+public enum TokenMode {
+
+    /**
+     * Access and refresh tokens, with the session of {@link SessionMode}
+     */
+    FULL,
+    /**
+     * Only an access token with a compact claim set, living at most {@link Constants#TELEGRAM_ACCESS_TOKEN_LIFESPAN}.
+     * The session is {@link SessionMode#TRANSIENT} whatever the client session mode is, so nothing is stored. The
+     * frontend exchanges fresh init_data instead of refreshing.
+     */
+    ACCESS_ONLY;
+
+    public static TokenMode of(ClientModel client) {
+        String mode = client.getAttribute(Constants.TELEGRAM_TOKEN_MODE);
+        if (mode == null || mode.isBlank()) {
+            return FULL;
+        }
+        try {
+            return valueOf(mode.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown " + Constants.TELEGRAM_TOKEN_MODE + ": " + mode, e);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package io.github.drednote.keycloak_telegram_authenticator.provider;
+
+import io.github.drednote.keycloak_telegram_authenticator.Constants;
+import java.util.Locale;
+import org.keycloak.models.RealmModel;
+
+/**
+ * How init_data is verified. Set per realm with the {@link Constants#TELEGRAM_VERIFICATION_MODE} realm attribute.
+ */
+public enum VerificationMode {
+
+    /**
+     * {@code hash} field is checked with HMAC-SHA256 of the bot token
+     */
+    HMAC,
+    /**
+     * {@code signature} field is checked with Telegram Ed25519 public key, the bot token is not needed
+     */
+    ED25519;
+
+    public static VerificationMode of(RealmModel realm) {
+        String mode = realm.getAttribute(Constants.TELEGRAM_VERIFICATION_MODE);
+        if (mode == null || mode.isBlank()) {
+            return HMAC;
+        }
+        try {
+            return valueOf(mode.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown " + Constants.TELEGRAM_VERIFICATION_MODE + ": " + mode, e);
+        }
+    }
+
+    public String value() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,202 @@
+package io.github.drednote.keycloak_telegram_authenticator;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.HexFormat;
+import java.util.Map;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.junit.jupiter.api.Test;
+
+class InitDataTest {
+
+    @Test
+    void parsesDocumentedExample() {
+        InitData data = InitData.parse(TelegramExamples.INIT_DATA);
+
+        assertEquals(6, data.size());
+        assertEquals(TelegramExamples.USER, data.get("user"));
+        assertEquals("private", data.get("chat_type"));
+        assertEquals(1733584787L, data.getLong("auth_date"));
+        assertEquals(TelegramExamples.HASH, data.get(InitData.HASH));
+        assertEquals(TelegramExamples.SIGNATURE, data.get(InitData.SIGNATURE));
+        assertDataCheck(TelegramExamples.HASH_DATA_CHECK, data);
+    }
+
+    @Test
+    void sortsFieldsByKey() {
+        InitData data = InitData.parse("user=u&auth_date=1&hash=h&chat_type=c");
+
+        assertEquals(Map.of("auth_date", "1", "chat_type", "c", "hash", "h", "user", "u"), data.toMap());
+        assertEquals("[auth_date, chat_type, hash, user]", data.toMap().keySet().toString());
+        assertDataCheck("auth_date=1\nchat_type=c\nuser=u", data);
+    }
+
+    @Test
+    void decodesPercentEncodedUtf8() {
+        InitData data = InitData.parse("first_name=%D0%9F%D1%80%D0%B8%D0%B2%D0%B5%D1%82&emoji=%F0%9F%98%80");
+
+        assertEquals("\u041f\u0440\u0438\u0432\u0435\u0442", data.get("first_name"));
+        assertEquals("\ud83d\ude00", data.get("emoji"));
+    }
+
+    @Test
+    void encodesRawCharactersAsUtf8() {
+        InitData data =
+            InitData.parse("first_name=\u041f\u0440\u0438\u0432\u0435\u0442&emoji=\ud83d\ude00&broken=\uD83D");
+
+        assertEquals("\u041f\u0440\u0438\u0432\u0435\u0442", data.get("first_name"));
+        assertEquals("\ud83d\ude00", data.get("emoji"));
+        // unpaired surrogate is replaced the same way as by String.getBytes
+        assertEquals("?", data.get("broken"));
+        assertDataCheck("broken=?\nemoji=\ud83d\ude00\nfirst_name=\u041f\u0440\u0438\u0432\u0435\u0442", data);
+    }
+
+    @Test
+    void decodesPlusAsSpace() {
+        InitData data = InitData.parse("a=Vladislav+Kibenko&b=%2B&c=x/y");
+
+        assertEquals("Vladislav Kibenko", data.get("a"));
+        assertEquals("+", data.get("b"));
+        assertEquals("x/y", data.get("c"));
+    }
+
+    @Test
+    void repeatedKeyReplacesEarlierValue() {
+        InitData data = InitData.parse("a=1&b=2&a=3");
+
+        assertEquals(2, data.size());
+        assertEquals("3", data.get("a"));
+        assertDataCheck("a=3\nb=2", data);
+    }
+
+    @Test
+    void dropsKeysWithoutValue() {
+        InitData data = InitData.parse("a&b=&c=1&&d=x=y");
+
+        assertFalse(data.contains("a"));
+        assertTrue(data.contains("b"));
+        assertEquals("", data.get("b"));
+        assertEquals("x=y", data.get("d"));
+        assertEquals(3, data.size());
+        assertDataCheck("b=\nc=1\nd=x=y", data);
+    }
+
+    @Test
+    void parsesJsonForm() {
+        InitData data = InitData.parse(" {\"user\":\"{\\\"id\\\":1}\",\"auth_date\":1733584787,\"query_id\":null,"
+                                       + "\"hash\":\"abc\"}");
+
+        assertEquals("{\"id\":1}", data.get("user"));
+        assertEquals(1733584787L, data.getLong("auth_date"));
+        assertFalse(data.contains("query_id"));
+        assertEquals(3, data.size());
+        assertDataCheck("auth_date=1733584787\nuser={\"id\":1}", data);
+    }
+
+    @Test
+    void jsonAndQueryFormsHaveSameDataCheck() {
+        InitData query = InitData.parse(TelegramExamples.INIT_DATA);
+        StringBuilder json = new StringBuilder("{");
+        query.toMap().forEach((key, value) -> json.append(json.length() > 1 ? "," : "")
+            .append('"').append(key).append("\":\"").append(value.replace("\\", "\\\\").replace("\"", "\\\""))
+            .append('"'));
+        InitData data = InitData.parse(json.append('}').toString());
+
+        assertEquals(query.toMap(), data.toMap());
+        assertDataCheck(TelegramExamples.HASH_DATA_CHECK, data);
+    }
+
+    @Test
+    void rejectsNestedJsonValues() {
+        assertThrows(IllegalArgumentException.class, () -> InitData.parse("{\"user\":{\"id\":1}}"));
+        assertThrows(IllegalArgumentException.class, () -> InitData.parse("{\"user\":\"u\""));
+    }
+
+    @Test
+    void rejectsMalformedEscapes() {
+        assertThrows(IllegalArgumentException.class, () -> InitData.parse("a=%2"));
+        assertThrows(IllegalArgumentException.class, () -> InitData.parse("a=%"));
+        assertThrows(IllegalArgumentException.class, () -> InitData.parse("a=%zz&b=1"));
+        assertThrows(IllegalArgumentException.class, () -> InitData.parse("a=%2g"));
+        assertThrows(IllegalArgumentException.class, () -> InitData.parse(null));
+    }
+
+    @Test
+    void comparesHashOfAnyCase() {
+        byte[] hash = HexFormat.of().parseHex(TelegramExamples.HASH);
+
+        assertTrue(InitData.parse("hash=" + TelegramExamples.HASH).hashEquals(hash));
+        assertTrue(InitData.parse("hash=" + TelegramExamples.HASH.toUpperCase()).hashEquals(hash));
+    }
+
+    @Test
+    void rejectsHashOfWrongLengthOrContent() {
+        byte[] hash = HexFormat.of().parseHex(TelegramExamples.HASH);
+        String hex = TelegramExamples.HASH;
+
+        assertFalse(InitData.parse("a=1").hashEquals(hash));
+        assertFalse(InitData.parse("hash=").hashEquals(hash));
+        assertFalse(InitData.parse("hash=" + hex.substring(2)).hashEquals(hash));
+        assertFalse(InitData.parse("hash=" + hex + "00").hashEquals(hash));
+        assertFalse(InitData.parse("hash=" + hex.substring(0, 62) + "0" + hex.charAt(63)).hashEquals(hash));
+        assertFalse(InitData.parse("hash=" + hex.substring(0, 62) + "zz").hashEquals(hash));
+    }
+
+    @Test
+    void parsesAfterOversizedInput() {
+        String large = "a=" + "x".repeat(1 << 20) + "&b=1";
+        StringBuilder many = new StringBuilder("k0=0");
+        for (int i = 1; i < 1000; i++) {
+            many.append("&k").append(i).append('=').append(i);
+        }
+
+        assertEquals(1 << 20, InitData.parse(large).get("a").length());
+        assertEquals(1000, InitData.parse(many.toString()).size());
+        assertThrows(IllegalArgumentException.class, () -> InitData.parse(large + "&c=%"));
+
+        // the scratch space shrunk back, the next init_data is parsed as before
+        InitData data = InitData.parse(TelegramExamples.INIT_DATA);
+        assertEquals(6, data.size());
+        assertDataCheck(TelegramExamples.HASH_DATA_CHECK, data);
+    }
+
+    @Test
+    void parsesLongWithoutString() {
+        InitData data = InitData.parse("a=123&b=&c=12x&d=1234567890123456789");
+
+        assertEquals(123L, data.getLong("a"));
+        assertThrows(NumberFormatException.class, () -> data.getLong("b"));
+        assertThrows(NumberFormatException.class, () -> data.getLong("c"));
+        assertThrows(NumberFormatException.class, () -> data.getLong("d"));
+        assertThrows(NumberFormatException.class, () -> data.getLong("e"));
+        assertNull(data.get("e"));
+    }
+
+    /**
+     * Compares what {@link InitData#writeDataCheck(Mac)} feeds to a mac with the expected data-check string.
+     */
+    private static void assertDataCheck(String expected, InitData data) {
+        Mac mac = mac();
+        data.writeDataCheck(mac);
+        byte[] actual = mac.doFinal();
+        assertArrayEquals(mac.doFinal(expected.getBytes(StandardCharsets.UTF_8)), actual);
+    }
+
+    private static Mac mac() {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(new byte[32], "HmacSHA256"));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
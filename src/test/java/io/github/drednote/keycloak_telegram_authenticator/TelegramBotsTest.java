@@ -0,0 +1,45 @@
+package io.github.drednote.keycloak_telegram_authenticator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class TelegramBotsTest {
+
+    @Test
+    void indexesTokensByBotId() {
+        TelegramBots bots = TelegramBots.of(" 111:AAHfirst ##no-bot-id## ##222:AAHsecond");
+
+        assertEquals(2, bots.size());
+        assertTrue(bots.contains(111));
+        assertFalse(bots.contains(333));
+        assertSame(TelegramAuthValidator.getSecretKey("222:AAHsecond"), bots.get(222));
+        assertNull(bots.get(333));
+        assertNull(bots.single());
+        assertNull(bots.singleId());
+    }
+
+    @Test
+    void selectsSingleBot() {
+        TelegramBots bots = TelegramBots.of("111:AAHonly");
+
+        assertEquals(111L, bots.singleId());
+        assertSame(bots.get(111), bots.single());
+        assertEquals(0, TelegramBots.of(null).size());
+    }
+
+    @Test
+    void evictsIndex() {
+        String tokens = "333:AAHthird##444:AAHfourth";
+        TelegramBots bots = TelegramBots.of(tokens);
+
+        assertSame(bots, TelegramBots.of(tokens));
+        TelegramBots.evict(tokens);
+        assertNotSame(bots, TelegramBots.of(tokens));
+    }
+}
@@ -0,0 +1,77 @@
+package io.github.drednote.keycloak_telegram_authenticator;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.HexFormat;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Example of init_data from the Telegram Mini Apps documentation, and a reference implementation of the hash to check
+ * the parser against.
+ */
+final class TelegramExamples {
+
+    /**
+     * Bot the example was issued for
+     */
+    static final long BOT_ID = 7342037359L;
+
+    static final String USER = "{\"id\":279058397,\"first_name\":\"Vladislav + - ? \\/\",\"last_name\":\"Kibenko\","
+                               + "\"username\":\"vdkfrost\",\"language_code\":\"ru\",\"is_premium\":true,"
+                               + "\"allows_write_to_pm\":true,\"photo_url\":\"https:\\/\\/t.me\\/i\\/userpic\\/320\\/"
+                               + "4FPEE4tmP3ATHa57u6MqTDih13LTOiMoKoLDRG4PnSA.svg\"}";
+
+    static final String SIGNATURE =
+        "zL-ucjNyREiHDE8aihFwpfR9aggP2xiAo3NSpfe-p7IbCisNlDKlo7Kb6G4D0Ao2mBrSgEk4maLSdv6MLIlADQ";
+
+    static final String HASH = "2174df5b000556d044f3f020384e879c8efcab55ddea2ced4eb752e93e7080d6";
+
+    /**
+     * init_data as Telegram passes it to the Mini App, signed by the production key
+     */
+    static final String INIT_DATA = "user=%7B%22id%22%3A279058397%2C%22first_name%22%3A%22Vladislav%20%2B%20-%20%3F%20"
+                                    + "%5C%2F%22%2C%22last_name%22%3A%22Kibenko%22%2C%22username%22%3A%22vdkfrost%22%2C"
+                                    + "%22language_code%22%3A%22ru%22%2C%22is_premium%22%3Atrue%2C%22allows_write_to_pm"
+                                    + "%22%3Atrue%2C%22photo_url%22%3A%22https%3A%5C%2F%5C%2Ft.me%5C%2Fi%5C%2Fuserpic"
+                                    + "%5C%2F320%5C%2F4FPEE4tmP3ATHa57u6MqTDih13LTOiMoKoLDRG4PnSA.svg%22%7D"
+                                    + "&chat_instance=8134722200314281151&chat_type=private&auth_date=1733584787"
+                                    + "&hash=" + HASH + "&signature=" + SIGNATURE;
+
+    /**
+     * Data-check string of the hash: every field except {@code hash}, so {@code signature} is included
+     */
+    static final String HASH_DATA_CHECK = "auth_date=1733584787\n"
+                                          + "chat_instance=8134722200314281151\n"
+                                          + "chat_type=private\n"
+                                          + "signature=" + SIGNATURE + "\n"
+                                          + "user=" + USER;
+
+    static final String BOT_TOKEN = BOT_ID + ":AAHdummy-token_of_the_example_bot";
+
+    private TelegramExamples() {
+    }
+
+    /**
+     * Hash of the data-check string as described by Telegram, without any code of the plugin.
+     */
+    static String referenceHash(String botToken, String dataCheck) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec("WebAppData".getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            byte[] secretKey = mac.doFinal(botToken.getBytes(StandardCharsets.UTF_8));
+            mac.init(new SecretKeySpec(secretKey, "HmacSHA256"));
+            return HexFormat.of().formatHex(mac.doFinal(dataCheck.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The example with its hash replaced by the hash of {@link #BOT_TOKEN}, since the token of the documentation is
+     * not published.
+     */
+    static String signedByBotToken() {
+        return INIT_DATA.replace(HASH, referenceHash(BOT_TOKEN, HASH_DATA_CHECK));
+    }
+}
@@ -0,0 +1,104 @@
+package io.github.drednote.keycloak_telegram_authenticator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Known answer tests with the init_data of the Telegram documentation, signed by the production key.
+ */
+class TelegramPublicKeysTest {
+
+    private final InitDataVerifier production =
+        TelegramPublicKeys.parse(TelegramPublicKeys.PRODUCTION).forBot(TelegramExamples.BOT_ID);
+
+    @Test
+    void verifiesDocumentedExample() {
+        // signature field is present, so it passes only if signature is excluded from the signed data
+        assertTrue(production.verify(InitData.parse(TelegramExamples.INIT_DATA)));
+        assertEquals(InitData.SIGNATURE, production.proofField());
+    }
+
+    @Test
+    void verifiesRepeatedlyWithSameSignature() {
+        InitData valid = InitData.parse(TelegramExamples.INIT_DATA);
+        InitData forged = InitData.parse(TelegramExamples.INIT_DATA.replace("private", "group"));
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(production.verify(valid));
+            assertFalse(production.verify(forged));
+        }
+    }
+
+    @Test
+    void verifiesJsonForm() {
+        InitData query = InitData.parse(TelegramExamples.INIT_DATA);
+        StringBuilder json = new StringBuilder("{");
+        query.toMap().forEach((key, value) -> json.append(json.length() > 1 ? "," : "")
+            .append('"').append(key).append("\":\"").append(value.replace("\\", "\\\\").replace("\"", "\\\""))
+            .append('"'));
+
+        assertTrue(production.verify(InitData.parse(json.append('}').toString())));
+    }
+
+    @Test
+    void ignoresHash() {
+        String withoutHash = TelegramExamples.INIT_DATA.replace("&hash=" + TelegramExamples.HASH, "");
+        String otherHash = TelegramExamples.INIT_DATA.replace(TelegramExamples.HASH, "00");
+
+        assertTrue(production.verify(InitData.parse(withoutHash)));
+        assertTrue(production.verify(InitData.parse(otherHash)));
+    }
+
+    @Test
+    void signsBotIdPrefix() {
+        InitDataVerifier otherBot =
+            TelegramPublicKeys.parse(TelegramPublicKeys.PRODUCTION).forBot(TelegramExamples.BOT_ID + 1);
+
+        assertFalse(otherBot.verify(InitData.parse(TelegramExamples.INIT_DATA)));
+    }
+
+    @Test
+    void rejectsOtherKey() {
+        InitDataVerifier test = TelegramPublicKeys.parse(TelegramPublicKeys.TEST).forBot(TelegramExamples.BOT_ID);
+
+        assertFalse(test.verify(InitData.parse(TelegramExamples.INIT_DATA)));
+    }
+
+    @Test
+    void triesEveryKey() {
+        InitDataVerifier both = TelegramPublicKeys.parse(TelegramPublicKeys.TEST, TelegramPublicKeys.PRODUCTION)
+            .forBot(TelegramExamples.BOT_ID);
+
+        assertTrue(both.verify(InitData.parse(TelegramExamples.INIT_DATA)));
+    }
+
+    @Test
+    void rejectsChangedField() {
+        String initData = TelegramExamples.INIT_DATA;
+
+        assertFalse(production.verify(InitData.parse(initData.replace("auth_date=1733584787", "auth_date=1"))));
+        assertFalse(production.verify(InitData.parse(initData.replace("%22vdkfrost%22", "%22vdkfrosT%22"))));
+        assertFalse(production.verify(InitData.parse(initData + "&query_id=1")));
+    }
+
+    @Test
+    void rejectsMalformedSignature() {
+        String initData = TelegramExamples.INIT_DATA;
+        String signature = TelegramExamples.SIGNATURE;
+
+        assertFalse(production.verify(InitData.parse(initData.replace(signature, "not+base64url"))));
+        assertFalse(production.verify(InitData.parse(initData.replace(signature, signature.substring(4)))));
+        assertFalse(production.verify(InitData.parse(initData.replace(signature, signature + "AAAA"))));
+        assertThrows(IllegalArgumentException.class, () -> production.verify(
+            InitData.parse(initData.replace("&signature=" + signature, ""))));
+    }
+
+    @Test
+    void rejectsInvalidKey() {
+        assertThrows(IllegalArgumentException.class, () -> TelegramPublicKeys.parse("abcd"));
+    }
+}
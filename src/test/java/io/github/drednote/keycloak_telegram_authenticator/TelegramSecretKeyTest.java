@@ -0,0 +1,83 @@
+package io.github.drednote.keycloak_telegram_authenticator;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class TelegramSecretKeyTest {
+
+    private final TelegramSecretKey secretKey = TelegramSecretKey.derive(TelegramExamples.BOT_TOKEN);
+
+    @Test
+    void verifiesHashOfTelegramDataCheck() {
+        assertTrue(secretKey.verify(InitData.parse(TelegramExamples.signedByBotToken())));
+    }
+
+    @Test
+    void verifiesHashOfAnyCase() {
+        String hash = TelegramExamples.referenceHash(TelegramExamples.BOT_TOKEN, TelegramExamples.HASH_DATA_CHECK);
+        String initData = TelegramExamples.signedByBotToken().replace(hash, hash.toUpperCase());
+
+        assertTrue(secretKey.verify(InitData.parse(initData)));
+    }
+
+    @Test
+    void verifiesRepeatedlyWithSameMac() {
+        InitData valid = InitData.parse(TelegramExamples.signedByBotToken());
+        InitData forged = InitData.parse(TelegramExamples.signedByBotToken().replace("private", "group"));
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(secretKey.verify(valid));
+            assertFalse(secretKey.verify(forged));
+        }
+    }
+
+    @Test
+    void rejectsOtherBotToken() {
+        TelegramSecretKey other = TelegramSecretKey.derive(TelegramExamples.BOT_ID + ":AAHother-token");
+
+        assertFalse(other.verify(InitData.parse(TelegramExamples.signedByBotToken())));
+    }
+
+    @Test
+    void rejectsChangedField() {
+        String initData = TelegramExamples.signedByBotToken();
+
+        assertFalse(secretKey.verify(InitData.parse(initData.replace("chat_type=private", "chat_type=group"))));
+        assertFalse(secretKey.verify(InitData.parse(initData.replace("auth_date=1733584787", "auth_date=1733584788"))));
+        assertFalse(secretKey.verify(InitData.parse(initData + "&query_id=1")));
+        // signature is a part of the hashed data
+        assertFalse(secretKey.verify(InitData.parse(initData.replace("signature=zL", "signature=zM"))));
+    }
+
+    @Test
+    void rejectsHashOfWrongLength() {
+        String hash = TelegramExamples.referenceHash(TelegramExamples.BOT_TOKEN, TelegramExamples.HASH_DATA_CHECK);
+        String initData = TelegramExamples.signedByBotToken();
+
+        assertFalse(secretKey.verify(InitData.parse(initData.replace(hash, hash.substring(0, 62)))));
+        assertFalse(secretKey.verify(InitData.parse(initData.replace(hash, hash + "ab"))));
+        assertFalse(secretKey.verify(InitData.parse(initData.replace(hash, ""))));
+    }
+
+    @Test
+    void requiresHash() {
+        String initData = TelegramExamples.signedByBotToken().replaceAll("&hash=[0-9a-f]+", "");
+
+        assertThrows(IllegalArgumentException.class, () -> secretKey.verify(InitData.parse(initData)));
+    }
+
+    @Test
+    void hashesDecodedUtf8() {
+        String dataCheck = "auth_date=1\nuser={\"first_name\":\"\u041f\u0440\u0438\u0432\u0435\u0442 \ud83d\ude00\"}";
+        String hash = TelegramExamples.referenceHash(TelegramExamples.BOT_TOKEN, dataCheck);
+
+        assertTrue(secretKey.verify(InitData.parse(
+            "auth_date=1&user=%7B%22first_name%22%3A%22%D0%9F%D1%80%D0%B8%D0%B2%D0%B5%D1%82%20%F0%9F%98%80%22%7D"
+            + "&hash=" + hash)));
+        assertTrue(secretKey.verify(InitData.parse(
+            "auth_date=1&user={\"first_name\":\"\u041f\u0440\u0438\u0432\u0435\u0442+\ud83d\ude00\"}&hash=" + hash)));
+    }
+}
@@ -0,0 +1,97 @@
+package io.github.drednote.keycloak_telegram_authenticator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class TelegramUserReaderTest {
+
+    @Test
+    void readsTypedFields() {
+        TelegramUser user = TelegramUserReader.read(TelegramExamples.USER);
+
+        assertEquals(279058397L, user.getId());
+        assertEquals("vdkfrost", user.getUserName());
+        assertEquals("Vladislav + - ? /", user.getFirstName());
+        assertEquals("Kibenko", user.getLastName());
+        assertEquals("https://t.me/i/userpic/320/4FPEE4tmP3ATHa57u6MqTDih13LTOiMoKoLDRG4PnSA.svg", user.getPhotoUrl());
+        assertEquals("ru", user.getLanguageCode());
+        assertEquals(Boolean.TRUE, user.getIsPremium());
+    }
+
+    @Test
+    void leavesAbsentFieldsNull() {
+        TelegramUser user = TelegramUserReader.read("{\"id\":1,\"first_name\":\"A\",\"is_premium\":null}");
+
+        assertEquals(1L, user.getId());
+        assertNull(user.getUserName());
+        assertNull(user.getLastName());
+        assertNull(user.getIsPremium());
+        assertEquals(Map.of("id", "1", "first_name", "A"), user.getFields());
+    }
+
+    @Test
+    void mapsFieldsAsTextLikeMapOfStrings() throws IOException {
+        String json = "{\"id\":279058397,\"first_name\":\"Vladislav\",\"is_premium\":true,\"allows_write_to_pm\":false,"
+                      + "\"added_to_attachment_menu\":true,\"rating\":1.5,\"language_code\":\"ru\"}";
+        Map<String, String> expected = new ObjectMapper().readValue(json, new TypeReference<Map<String, String>>() {
+        });
+
+        Map<String, String> fields = TelegramUserReader.read(json).getFields();
+
+        assertEquals(expected, fields);
+        assertEquals("279058397", fields.get("id"));
+        assertEquals("true", fields.get("is_premium"));
+        assertEquals("false", fields.get("allows_write_to_pm"));
+        assertEquals("1.5", fields.get("rating"));
+    }
+
+    @Test
+    void skipsNestedValues() {
+        TelegramUser user = TelegramUserReader.read(
+            "{\"id\":1,\"emoji_status\":{\"id\":\"5\",\"until\":[1,{\"x\":2}]},\"tags\":[\"a\",\"b\"],"
+            + "\"username\":\"u\"}");
+
+        assertEquals(1L, user.getId());
+        assertEquals("u", user.getUserName());
+        assertEquals(Map.of("id", "1", "username", "u"), user.getFields());
+        assertFalse(user.getFields().containsKey("emoji_status"));
+    }
+
+    @Test
+    void readsIdGivenAsString() {
+        assertEquals(42L, TelegramUserReader.read("{\"id\":\"42\"}").getId());
+    }
+
+    @Test
+    void requiresNumericId() {
+        assertNull(TelegramUserReader.read("{\"username\":\"u\"}").getId());
+        assertThrows(IllegalArgumentException.class, () -> TelegramAuthValidator.parseUser("{\"username\":\"u\"}"));
+        assertThrows(IllegalArgumentException.class, () -> TelegramUserReader.read("{\"id\":\"abc\"}"));
+        assertThrows(IllegalArgumentException.class, () -> TelegramUserReader.read("{\"id\":1.5}"));
+        assertThrows(IllegalArgumentException.class, () -> TelegramUserReader.read("{\"id\":true}"));
+        assertThrows(IllegalArgumentException.class, () -> TelegramUserReader.read("{\"id\":12345678901234567890}"));
+    }
+
+    @Test
+    void generatesUsernameIfAbsent() {
+        TelegramUser user = TelegramAuthValidator.parseUser("{\"id\":1,\"username\":\" \"}");
+
+        assertTrue(user.getUserName().length() > 1);
+    }
+
+    @Test
+    void rejectsMalformedJson() {
+        assertThrows(IllegalArgumentException.class, () -> TelegramUserReader.read("[1]"));
+        assertThrows(IllegalArgumentException.class, () -> TelegramUserReader.read("{\"id\":1"));
+        assertThrows(IllegalArgumentException.class, () -> TelegramUserReader.read("not json"));
+    }
+}
@@ -0,0 +1,115 @@
+package io.github.drednote.keycloak_telegram_authenticator.provider;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.base.Ticker;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class RateLimiterTest {
+
+    private final ManualTicker ticker = new ManualTicker();
+    private final RateLimiter limiter = new RateLimiter(100, ticker);
+
+    @Test
+    void acquiresUpToLimit() {
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limiter.tryAcquire("a", 3));
+        }
+        assertFalse(limiter.tryAcquire("a", 3));
+        assertTrue(limiter.tryAcquire("b", 3));
+    }
+
+    @Test
+    void refillsContinuously() {
+        for (int i = 0; i < 60; i++) {
+            assertTrue(limiter.tryAcquire("a", 60));
+        }
+        assertFalse(limiter.tryAcquire("a", 60));
+
+        // 60 per minute is one token a second
+        ticker.advance(500, TimeUnit.MILLISECONDS);
+        assertFalse(limiter.tryAcquire("a", 60));
+        ticker.advance(500, TimeUnit.MILLISECONDS);
+        assertTrue(limiter.tryAcquire("a", 60));
+        assertFalse(limiter.tryAcquire("a", 60));
+
+        ticker.advance(3, TimeUnit.SECONDS);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limiter.tryAcquire("a", 60));
+        }
+        assertFalse(limiter.tryAcquire("a", 60));
+    }
+
+    @Test
+    void holdsAtMostLimit() {
+        assertTrue(limiter.tryAcquire("a", 2));
+        ticker.advance(50, TimeUnit.SECONDS);
+
+        assertTrue(limiter.tryAcquire("a", 2));
+        assertTrue(limiter.tryAcquire("a", 2));
+        assertFalse(limiter.tryAcquire("a", 2));
+    }
+
+    @Test
+    void checksCapacityWithoutTakingToken() {
+        assertTrue(limiter.hasCapacity("a", 1));
+        assertTrue(limiter.tryAcquire("a", 1));
+        assertFalse(limiter.hasCapacity("a", 1));
+
+        assertTrue(limiter.hasCapacity("b", 1));
+        assertTrue(limiter.hasCapacity("b", 1));
+        assertTrue(limiter.tryAcquire("b", 1));
+        assertFalse(limiter.hasCapacity("b", 1));
+
+        ticker.advance(1, TimeUnit.MINUTES);
+        assertTrue(limiter.hasCapacity("b", 1));
+        assertTrue(limiter.hasCapacity("b", 1));
+        assertTrue(limiter.tryAcquire("b", 1));
+    }
+
+    @Test
+    void rejectsZeroLimit() {
+        assertFalse(limiter.hasCapacity("a", 0));
+        assertFalse(limiter.tryAcquire("a", 0));
+    }
+
+    @Test
+    void startsFullAfterExpiry() {
+        assertTrue(limiter.tryAcquire("a", 1));
+        assertFalse(limiter.tryAcquire("a", 1));
+
+        ticker.advance(61, TimeUnit.SECONDS);
+        assertTrue(limiter.hasCapacity("a", 1));
+        assertTrue(limiter.tryAcquire("a", 1));
+        assertFalse(limiter.tryAcquire("a", 1));
+    }
+
+    @Test
+    void startsFullAfterEviction() {
+        RateLimiter single = new RateLimiter(1, ticker);
+        assertTrue(single.tryAcquire("a", 1));
+        assertFalse(single.tryAcquire("a", 1));
+
+        // the bucket of b is the only one kept, so a is forgotten
+        assertTrue(single.tryAcquire("b", 1));
+        assertTrue(single.hasCapacity("a", 1));
+        assertTrue(single.tryAcquire("a", 1));
+        assertFalse(single.tryAcquire("a", 1));
+    }
+
+    private static final class ManualTicker extends Ticker {
+
+        private long nanos;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+
+        void advance(long duration, TimeUnit unit) {
+            nanos += unit.toNanos(duration);
+        }
+    }
+}
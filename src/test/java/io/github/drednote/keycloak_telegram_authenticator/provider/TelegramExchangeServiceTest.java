@@ -0,0 +1,140 @@
+package io.github.drednote.keycloak_telegram_authenticator.provider;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import io.github.drednote.keycloak_telegram_authenticator.Constants;
+import io.github.drednote.keycloak_telegram_authenticator.TelegramAuthValidator;
+import io.github.drednote.keycloak_telegram_authenticator.TelegramBots;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.RealmModel;
+
+/**
+ * Selection of the bot a request is verified with: the {@code bot_id} form parameter must never select a bot that is
+ * not configured.
+ */
+class TelegramExchangeServiceTest {
+
+    private static final String FIRST_TOKEN = "111:AAHfirst-token";
+    private static final String SECOND_TOKEN = "222:AAHsecond-token";
+    private static final String TOKENS = FIRST_TOKEN + TelegramBots.DELIMITER + SECOND_TOKEN;
+
+    private static final ClientModel NO_CLIENT_BOT = client(null);
+
+    @Test
+    void selectsSecretKeyByBotId() {
+        RealmModel realm = realm(Constants.TELEGRAM_BOT_TOKENS, TOKENS);
+
+        assertSame(TelegramAuthValidator.getSecretKey(SECOND_TOKEN),
+            TelegramExchangeService.getSecretKey(realm, NO_CLIENT_BOT, "222"));
+        assertSame(TelegramAuthValidator.getSecretKey(FIRST_TOKEN),
+            TelegramExchangeService.getSecretKey(realm, client("222"), " 111 "));
+    }
+
+    @Test
+    void rejectsUnknownBotIdOfSecretKey() {
+        RealmModel realm = realm(Constants.TELEGRAM_BOT_TOKENS, TOKENS);
+
+        assertRejected("Unknown telegram bot", () -> TelegramExchangeService.getSecretKey(realm, NO_CLIENT_BOT, "333"));
+        assertRejected("Unknown telegram bot", () -> TelegramExchangeService.getSecretKey(realm, NO_CLIENT_BOT, "x"));
+        assertRejected("Unknown telegram bot", () -> TelegramExchangeService.getSecretKey(realm, client("333"), null));
+    }
+
+    @Test
+    void requiresBotIdOfSecretKeyWithSeveralBots() {
+        RealmModel realm = realm(Constants.TELEGRAM_BOT_TOKENS, TOKENS);
+
+        assertRejected("bot_id is required when realm has several telegram bots",
+            () -> TelegramExchangeService.getSecretKey(realm, NO_CLIENT_BOT, null));
+    }
+
+    @Test
+    void fallsBackToClientBotOfSecretKey() {
+        RealmModel realm = realm(Constants.TELEGRAM_BOT_TOKENS, TOKENS);
+
+        assertSame(TelegramAuthValidator.getSecretKey(FIRST_TOKEN),
+            TelegramExchangeService.getSecretKey(realm, client("111"), null));
+    }
+
+    @Test
+    void selectsSingleBotTokenOfSecretKey() {
+        RealmModel realm = realm(Constants.TELEGRAM_BOT_TOKEN, FIRST_TOKEN);
+
+        assertSame(TelegramAuthValidator.getSecretKey(FIRST_TOKEN),
+            TelegramExchangeService.getSecretKey(realm, NO_CLIENT_BOT, null));
+        assertSame(TelegramAuthValidator.getSecretKey(FIRST_TOKEN),
+            TelegramExchangeService.getSecretKey(realm, NO_CLIENT_BOT, "111"));
+        assertRejected("Unknown telegram bot", () -> TelegramExchangeService.getSecretKey(realm, NO_CLIENT_BOT, "222"));
+    }
+
+    @Test
+    void selectsTrustedBotId() {
+        RealmModel realm = realm(Constants.TELEGRAM_BOT_TOKENS, TOKENS, Constants.TELEGRAM_BOT_ID, "444");
+
+        assertEquals(222L, TelegramExchangeService.getTrustedBotId(realm, NO_CLIENT_BOT, "222"));
+        assertEquals(444L, TelegramExchangeService.getTrustedBotId(realm, NO_CLIENT_BOT, "444"));
+        assertEquals(555L, TelegramExchangeService.getTrustedBotId(realm, client("555"), "555"));
+    }
+
+    @Test
+    void rejectsUnknownTrustedBotId() {
+        RealmModel realm = realm(Constants.TELEGRAM_BOT_TOKENS, TOKENS, Constants.TELEGRAM_BOT_ID, "444");
+
+        assertRejected("Unknown telegram bot",
+            () -> TelegramExchangeService.getTrustedBotId(realm, client("555"), "333"));
+        assertRejected("Unknown telegram bot",
+            () -> TelegramExchangeService.getTrustedBotId(realm, NO_CLIENT_BOT, "x"));
+    }
+
+    @Test
+    void requiresTrustedBotIdWithSeveralBots() {
+        RealmModel realm = realm(Constants.TELEGRAM_BOT_TOKENS, TOKENS);
+
+        assertRejected("bot_id is required when realm has several telegram bots",
+            () -> TelegramExchangeService.getTrustedBotId(realm, NO_CLIENT_BOT, null));
+    }
+
+    @Test
+    void fallsBackToClientTrustedBotId() {
+        RealmModel realm = realm(Constants.TELEGRAM_BOT_TOKENS, TOKENS, Constants.TELEGRAM_BOT_ID, "444");
+
+        assertEquals(555L, TelegramExchangeService.getTrustedBotId(realm, client("555"), null));
+        assertEquals(444L, TelegramExchangeService.getTrustedBotId(realm, NO_CLIENT_BOT, null));
+        assertEquals(111L, TelegramExchangeService.getTrustedBotId(
+            realm(Constants.TELEGRAM_BOT_TOKENS, FIRST_TOKEN), NO_CLIENT_BOT, null));
+    }
+
+    private static void assertRejected(String reason, Runnable selection) {
+        TelegramExchangeException e = assertThrows(TelegramExchangeException.class, selection::run);
+        assertEquals(reason, e.getMessage());
+    }
+
+    private static RealmModel realm(String... attributes) {
+        Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < attributes.length; i += 2) {
+            values.put(attributes[i], attributes[i + 1]);
+        }
+        return withAttributes(RealmModel.class, values);
+    }
+
+    private static ClientModel client(String botId) {
+        Map<String, String> values = new HashMap<>();
+        values.put(Constants.TELEGRAM_BOT_ID, botId);
+        return withAttributes(ClientModel.class, values);
+    }
+
+    /**
+     * @return model answering only {@code getAttribute(String)}
+     */
+    private static <T> T withAttributes(Class<T> type, Map<String, String> attributes) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (self, method, args) ->
+            "getAttribute".equals(method.getName()) && args != null && args.length == 1
+                ? attributes.get((String) args[0])
+                : null));
+    }
+}